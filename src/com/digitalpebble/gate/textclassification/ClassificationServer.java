@@ -0,0 +1,231 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exposes a {@link ClassificationService} over HTTP with the server of the
+ * JDK. The text to classify is sent as the body of a POST request to
+ * /classify, the tokens are separated by whitespaces if the parameter
+ * tokenized=true is given. The latency budget in msec can be set with the
+ * parameter budget. The results and the metrics of the service (/metrics)
+ * are returned as JSON.
+ **/
+public class ClassificationServer {
+
+	private final ClassificationService service;
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	public ClassificationServer(ClassificationService service, int port,
+			int threads) throws IOException {
+		this.service = service;
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/classify", new ClassifyHandler());
+		server.createContext("/metrics", new MetricsHandler());
+		// the threads only wait for the workers of the service
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+		service.shutdown();
+	}
+
+	private class ClassifyHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					send(exchange, 405, "{\"error\":\"POST expected\"}");
+					return;
+				}
+				String query = exchange.getRequestURI().getRawQuery();
+				String text = read(exchange.getRequestBody());
+				boolean tokenized = "true".equals(parameter(query, "tokenized"));
+				String[] tokens = tokenized ? split(text)
+						: ClassificationService.tokenize(text);
+				String budget = parameter(query, "budget");
+				long budgetMillis = budget != null ? Long.parseLong(budget)
+						: service.getDefaultBudgetMillis();
+				ClassificationService.Result result = service.classify(
+						tokens, budgetMillis);
+				send(exchange, 200, toJSON(result));
+			} catch (TimeoutException e) {
+				send(exchange, 503, error(e));
+			} catch (RejectedExecutionException e) {
+				send(exchange, 503, error(e));
+			} catch (NumberFormatException e) {
+				send(exchange, 400, error(e));
+			} catch (Exception e) {
+				send(exchange, 500, error(e));
+			}
+		}
+	}
+
+	private class MetricsHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			StringBuilder json = new StringBuilder("{");
+			json.append("\"queueDepth\":").append(service.getQueueDepth());
+			json.append(",\"maxQueueDepth\":").append(
+					service.getMaxQueueDepth());
+			json.append(",\"requests\":").append(service.getRequests());
+			json.append(",\"rejected\":").append(service.getRejected());
+			json.append(",\"timedOut\":").append(service.getTimedOut());
+			json.append(",\"batches\":").append(service.getBatches());
+			json.append(",\"averageBatchSize\":").append(
+					service.getAverageBatchSize());
+			json.append(",\"averageLatencyMillis\":").append(
+					service.getAverageLatency());
+			json.append("}");
+			send(exchange, 200, json.toString());
+		}
+	}
+
+	private static String toJSON(ClassificationService.Result result) {
+		StringBuilder json = new StringBuilder("{\"label\":");
+		Json.quote(result.getLabel(), json);
+		json.append(",\"scores\":{");
+		String[] labels = result.getLabels();
+		double[] scores = result.getScores();
+		for (int i = 0; i < labels.length && i < scores.length; i++) {
+			if (i > 0)
+				json.append(',');
+			Json.quote(labels[i], json);
+			json.append(':').append(scores[i]);
+		}
+		json.append("}}");
+		return json.toString();
+	}
+
+	private static String error(Exception e) {
+		StringBuilder json = new StringBuilder("{\"error\":");
+		Json.quote(String.valueOf(e.getMessage()), json);
+		json.append('}');
+		return json.toString();
+	}
+
+	private static String[] split(String text) {
+		String trimmed = text.trim();
+		if (trimmed.length() == 0)
+			return new String[0];
+		return trimmed.split("\\s+");
+	}
+
+	private static String parameter(String query, String name) {
+		if (query == null)
+			return null;
+		String[] pairs = query.split("&");
+		for (int i = 0; i < pairs.length; i++) {
+			int eq = pairs[i].indexOf('=');
+			if (eq != -1 && pairs[i].substring(0, eq).equals(name))
+				return pairs[i].substring(eq + 1);
+		}
+		return null;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		try {
+			while ((read = in.read(buffer)) != -1)
+				bytes.write(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		return bytes.toString("UTF-8");
+	}
+
+	private static void send(HttpExchange exchange, int code, String body)
+			throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type",
+				"application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(code, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		File modelDir = null;
+		int port = 8080;
+		int workers = 1;
+		int threads = 32;
+		int queue = 1024;
+		int batch = 32;
+		double linger = 1d;
+		long budget = 1000;
+		for (int i = 0; i < args.length - 1; i += 2) {
+			if ("-model".equals(args[i]))
+				modelDir = new File(args[i + 1]);
+			else if ("-port".equals(args[i]))
+				port = Integer.parseInt(args[i + 1]);
+			else if ("-workers".equals(args[i]))
+				workers = Integer.parseInt(args[i + 1]);
+			else if ("-threads".equals(args[i]))
+				threads = Integer.parseInt(args[i + 1]);
+			else if ("-queue".equals(args[i]))
+				queue = Integer.parseInt(args[i + 1]);
+			else if ("-batch".equals(args[i]))
+				batch = Integer.parseInt(args[i + 1]);
+			else if ("-linger".equals(args[i]))
+				linger = Double.parseDouble(args[i + 1]);
+			else if ("-budget".equals(args[i]))
+				budget = Long.parseLong(args[i + 1]);
+		}
+		if (modelDir == null) {
+			System.err
+					.println("ClassificationServer -model dir [-port 8080] [-workers 1] [-threads 32] [-queue 1024] [-batch 32] [-linger 1] [-budget 1000]");
+			System.exit(-1);
+		}
+		ClassificationService service = new ClassificationService(modelDir,
+				workers, queue);
+		service.setMaxBatchSize(batch);
+		service.setLingerMillis(linger);
+		service.setDefaultBudgetMillis(budget);
+		service.start();
+		new ClassificationServer(service, port, threads).start();
+		System.out.println("Listening on port " + port);
+	}
+}
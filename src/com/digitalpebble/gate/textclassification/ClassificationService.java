@@ -0,0 +1,386 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.digitalpebble.classification.Document;
+import com.digitalpebble.classification.TextClassifier;
+import com.digitalpebble.classification.util.Tokenizer;
+
+/**
+ * Classifies texts or arrays of tokens with a model generated from the
+ * TrainingCorpusCreatorPR without going through GATE. The requests of
+ * concurrent callers are put in a queue and classified in micro-batches by a
+ * number of workers, each of them with its own copy of the model. Every
+ * request has a latency budget after which the caller gives up and the
+ * request is skipped if it has not been classified yet. The service is
+ * configured with its setters and then started with {@link #start()}.
+ **/
+public class ClassificationService {
+
+	private final BlockingQueue<Request> queue;
+
+	private final Worker[] workers;
+
+	private final String[] labels;
+
+	private int maxBatchSize = 32;
+
+	// how long a worker waits for more requests to complete a batch
+	private long lingerNanos = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private long defaultBudgetMillis = 1000;
+
+	private volatile boolean started;
+
+	private volatile boolean running = true;
+
+	// metrics
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private final AtomicLong timedOut = new AtomicLong();
+
+	private final AtomicLong batches = new AtomicLong();
+
+	private final AtomicLong batchedRequests = new AtomicLong();
+
+	private final AtomicLong answered = new AtomicLong();
+
+	private final AtomicLong latencyNanos = new AtomicLong();
+
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+	/** Result of the classification of a text **/
+	public static class Result {
+
+		private final String label;
+
+		private final double[] scores;
+
+		private final String[] labels;
+
+		Result(String label, double[] scores, String[] labels) {
+			this.label = label;
+			this.scores = scores;
+			this.labels = labels;
+		}
+
+		/** Label with the best score **/
+		public String getLabel() {
+			return label;
+		}
+
+		/** Scores indexed like {@link #getLabels()} **/
+		public double[] getScores() {
+			return scores;
+		}
+
+		public String[] getLabels() {
+			return labels;
+		}
+	}
+
+	private static class Request {
+
+		final String[] tokens;
+
+		final long deadline;
+
+		final long created = System.nanoTime();
+
+		final CountDownLatch done = new CountDownLatch(1);
+
+		// set when the caller stopped waiting
+		final AtomicBoolean abandoned = new AtomicBoolean();
+
+		Result result;
+
+		Exception error;
+
+		Request(String[] tokens, long budgetMillis) {
+			this.tokens = tokens;
+			this.deadline = created
+					+ TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+		}
+	}
+
+	/**
+	 * Loads the latest version of the model found in modelDir once per
+	 * worker. At most queueCapacity requests can wait to be classified.
+	 **/
+	public ClassificationService(File modelDir, int numWorkers,
+			int queueCapacity) throws Exception {
+		File version = ModelVersions.latest(modelDir);
+		queue = new LinkedBlockingQueue<Request>(queueCapacity);
+		workers = new Worker[numWorkers];
+		for (int i = 0; i < numWorkers; i++)
+			workers[i] = new Worker(TextClassifier.getClassifier(version), i);
+		labels = workers[0].classifier.getLabels();
+	}
+
+	/**
+	 * Starts the workers, the configuration set before is seen by all of them
+	 * and can no longer be changed
+	 **/
+	public synchronized void start() {
+		if (started)
+			throw new IllegalStateException("Service already started");
+		if (!running)
+			throw new IllegalStateException("Service is shut down");
+		started = true;
+		for (int i = 0; i < workers.length; i++)
+			workers[i].start();
+	}
+
+	/** Classifies a text with the default latency budget **/
+	public Result classify(String text) throws TimeoutException,
+			ExecutionException, InterruptedException {
+		return classify(tokenize(text), defaultBudgetMillis);
+	}
+
+	/**
+	 * Classifies an array of tokens, waiting at most budgetMillis for the
+	 * result
+	 **/
+	public Result classify(String[] tokens, long budgetMillis)
+			throws TimeoutException, ExecutionException, InterruptedException {
+		if (!started)
+			throw new IllegalStateException("Service not started");
+		if (!running)
+			throw new RejectedExecutionException("Service is shut down");
+		Request request = new Request(tokens, budgetMillis);
+		requests.incrementAndGet();
+		if (!queue.offer(request)) {
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException("Queue is full");
+		}
+		// the queue may have been drained by shutdown() in the meantime
+		if (!running && queue.remove(request)) {
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException("Service is shut down");
+		}
+		int depth = queue.size();
+		int max = maxQueueDepth.get();
+		while (depth > max && !maxQueueDepth.compareAndSet(max, depth))
+			max = maxQueueDepth.get();
+		long wait = request.deadline - System.nanoTime();
+		if (!request.done.await(wait, TimeUnit.NANOSECONDS)) {
+			request.abandoned.set(true);
+			timedOut.incrementAndGet();
+			throw new TimeoutException("No result after " + budgetMillis
+					+ " msec");
+		}
+		if (request.error instanceof TimeoutException) {
+			timedOut.incrementAndGet();
+			throw (TimeoutException) request.error;
+		}
+		if (request.error != null)
+			throw new ExecutionException(request.error);
+		answered.incrementAndGet();
+		latencyNanos.addAndGet(System.nanoTime() - request.created);
+		return request.result;
+	}
+
+	/**
+	 * Splits a text into lowercased tokens, the same way as SimpleClassifierPR
+	 * so that a model gets the same features from both
+	 **/
+	public static String[] tokenize(String text) {
+		return Tokenizer.tokenize(text, true);
+	}
+
+	/**
+	 * Stops the workers once they have classified the requests already taken
+	 * from the queue, the requests still in the queue are rejected
+	 **/
+	public void shutdown() {
+		synchronized (this) {
+			running = false;
+		}
+		for (int i = 0; i < workers.length; i++)
+			workers[i].interrupt();
+		Request request;
+		while ((request = queue.poll()) != null) {
+			request.error = new RejectedExecutionException(
+					"Service is shut down");
+			request.done.countDown();
+		}
+		if (!started)
+			return;
+		try {
+			for (int i = 0; i < workers.length; i++)
+				workers[i].join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private class Worker extends Thread {
+
+		private final TextClassifier classifier;
+
+		Worker(TextClassifier classifier, int num) {
+			super("ClassificationService-" + num);
+			setDaemon(true);
+			this.classifier = classifier;
+		}
+
+		public void run() {
+			List<Request> batch = new ArrayList<Request>(maxBatchSize);
+			while (running) {
+				try {
+					batch.add(queue.take());
+					long limit = System.nanoTime() + lingerNanos;
+					while (batch.size() < maxBatchSize) {
+						long wait = limit - System.nanoTime();
+						Request next = wait > 0 ? queue.poll(wait,
+								TimeUnit.NANOSECONDS) : queue.poll();
+						if (next == null)
+							break;
+						batch.add(next);
+					}
+				} catch (InterruptedException e) {
+					// interrupted by shutdown(), the requests already in the
+					// batch are still classified before the loop ends
+				}
+				if (!batch.isEmpty())
+					process(batch);
+				batch.clear();
+			}
+		}
+
+		private void process(List<Request> batch) {
+			// skips the requests which can no longer be answered in time
+			long now = System.nanoTime();
+			List<Request> live = new ArrayList<Request>(batch.size());
+			for (int i = 0; i < batch.size(); i++) {
+				Request request = batch.get(i);
+				if (request.abandoned.get() || request.deadline < now) {
+					request.error = new TimeoutException(
+							"Budget exceeded before classification");
+					request.done.countDown();
+					continue;
+				}
+				live.add(request);
+			}
+			if (live.isEmpty())
+				return;
+			batches.incrementAndGet();
+			batchedRequests.addAndGet(live.size());
+			try {
+				Document[] docs = new Document[live.size()];
+				for (int i = 0; i < docs.length; i++)
+					docs[i] = classifier.createDocument(live.get(i).tokens);
+				double[][] scores = classifier.classify(docs);
+				for (int i = 0; i < docs.length; i++) {
+					Request request = live.get(i);
+					request.result = new Result(classifier
+							.getBestLabel(scores[i]), scores[i], labels);
+					request.done.countDown();
+				}
+			} catch (Exception e) {
+				for (int i = 0; i < live.size(); i++) {
+					Request request = live.get(i);
+					if (request.done.getCount() == 0)
+						continue;
+					request.error = e;
+					request.done.countDown();
+				}
+			}
+		}
+	}
+
+	/** Number of requests waiting to be classified **/
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getTimedOut() {
+		return timedOut.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public double getAverageBatchSize() {
+		long b = batches.get();
+		return b == 0 ? 0d : (double) batchedRequests.get() / b;
+	}
+
+	/** Average latency in msec of the requests answered in time **/
+	public double getAverageLatency() {
+		long n = answered.get();
+		return n == 0 ? 0d : latencyNanos.get() / 1000000d / n;
+	}
+
+	public String[] getLabels() {
+		return labels;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		checkNotStarted();
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public void setLingerMillis(double lingerMillis) {
+		checkNotStarted();
+		this.lingerNanos = (long) (lingerMillis * 1000000d);
+	}
+
+	public void setDefaultBudgetMillis(long defaultBudgetMillis) {
+		checkNotStarted();
+		this.defaultBudgetMillis = defaultBudgetMillis;
+	}
+
+	// the workers read the configuration without synchronisation
+	private void checkNotStarted() {
+		if (started)
+			throw new IllegalStateException(
+					"The service must be configured before it is started");
+	}
+
+	public long getDefaultBudgetMillis() {
+		return defaultBudgetMillis;
+	}
+}
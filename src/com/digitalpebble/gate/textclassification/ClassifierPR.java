@@ -22,13 +22,12 @@ import gate.Resource;
 import gate.creole.AbstractLanguageAnalyser;
 import gate.creole.ExecutionException;
 import gate.creole.ResourceInstantiationException;
-import gate.util.OffsetComparator;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -37,9 +36,37 @@ import com.digitalpebble.classification.TextClassifier;
 
 public class ClassifierPR extends AbstractLanguageAnalyser implements
 		ProcessingResource {
+
+	/** The label and score are stored as features of each span annotation **/
+	public static final String ANNOTATION_OUTPUT = "annotation";
+
+	/**
+	 * The labels and scores of all the spans are stored in a single
+	 * {@link SpanLabels} document feature
+	 **/
+	public static final String DOCUMENT_OUTPUT = "document";
+
+	/** Oversized spans are classified on their first maxSpanLength values **/
+	public static final String TRUNCATE_POLICY = "truncate";
+
+	/**
+	 * Oversized spans are split into windows of maxSpanLength values whose
+	 * scores are averaged
+	 **/
+	public static final String WINDOW_POLICY = "window";
+
+	/**
+	 * Oversized spans are classified after the other spans of the document,
+	 * the ones left when deferredTimeBudget is spent are truncated
+	 **/
+	public static final String DEFER_POLICY = "defer";
+
 	/** * */
 	private TextClassifier applier;
 
+	/** Scores the spans directly with the weights of a liblinear model **/
+	private LinearScorer scorer;
+
 	/**
 	 * Input AnnotationSet name
 	 */
@@ -73,6 +100,60 @@ public class ClassifierPR extends AbstractLanguageAnalyser implements
 
 	private URL modelDir;
 
+	private String outputMode = ANNOTATION_OUTPUT;
+
+	/** Maximum number of values for a span, -1 for no limit **/
+	private Integer maxSpanLength = -1;
+
+	private String oversizedSpanPolicy = TRUNCATE_POLICY;
+
+	/**
+	 * Time in msec per document for classifying the deferred spans in full, -1
+	 * for no limit
+	 */
+	private Integer deferredTimeBudget = -1;
+
+	/** Number of values per span **/
+	private final Histogram spanSizes = new Histogram();
+
+	/** Time in microseconds spent classifying each span **/
+	private final Histogram spanTimes = new Histogram();
+
+	/**
+	 * Directory where the values extracted from the documents are cached, no
+	 * caching if null
+	 */
+	private URL featureCacheDir;
+
+	/**
+	 * Number of synthetic documents classified when the model is loaded, 0 for
+	 * no warm-up. The LinearScorer is checked against the classifier before
+	 * the warm-up.
+	 */
+	private Integer warmUpDocuments = 0;
+
+	/** File where the processing of the documents is traced, none if null **/
+	private URL tracePath;
+
+	/** Ratio of the documents traced **/
+	private Double traceSampleRate = 1d;
+
+	private TraceRecorder tracer;
+
+	private long documentsSeen;
+
+	// recorder for the current document, null if it is not traced
+	private TraceRecorder trace;
+
+	// time in nanoseconds spent on the current document
+	private long extractTime;
+
+	private long lookupTime;
+
+	private long classifyTime;
+
+	private long writeTime;
+
 	/*
 	 * this method gets called whenever an object of this class is created
 	 * either from GATE GUI or if initiated using Factory.createResource()
@@ -93,12 +174,37 @@ public class ClassifierPR extends AbstractLanguageAnalyser implements
 		}
 		// initializes the modelCreator
 		try {
-			String pathresourceDir = new File(URI.create(modelDir
-					.toExternalForm())).getAbsolutePath();
-			this.applier = TextClassifier.getClassifier(pathresourceDir);
+			File resourceDir = new File(URI.create(modelDir.toExternalForm()));
+			// use the latest version if the model has been updated
+			this.applier = TextClassifier.getClassifier(ModelVersions
+					.latest(resourceDir));
+			this.scorer = LinearScorer.forClassifier(applier);
+			if (scorer == null)
+				fireStatusChanged("Model applied by "
+						+ applier.getClass().getSimpleName()
+						+ " : no LinearScorer for it");
+			if (warmUpDocuments != null && warmUpDocuments.intValue() > 0) {
+				// falls back to the classifier if the scorer disagrees with it
+				if (scorer != null) {
+					int differences = WarmUp.compare(applier, scorer,
+							LinearScorer.CHECKED_DOCUMENTS);
+					if (differences > 0) {
+						fireStatusChanged("LinearScorer disabled : "
+								+ differences + " documents out of "
+								+ LinearScorer.CHECKED_DOCUMENTS
+								+ " classified differently");
+						this.scorer = null;
+					}
+				}
+				WarmUp warmUp = WarmUp.run(applier, scorer, warmUpDocuments
+						.intValue());
+				fireStatusChanged(warmUp.toString());
+			}
 		} catch (Exception e) {
 			throw new ResourceInstantiationException(e);
 		}
+		spanSizes.clear();
+		spanTimes.clear();
 		fireProcessFinished();
 		return this;
 	}
@@ -127,79 +233,242 @@ public class ClassifierPR extends AbstractLanguageAnalyser implements
 			System.err.println("There are no annotations of type "
 					+ labelAnnotationType + " available in document "+document.getName());
 		}
-		Iterator iterator = textAS.iterator();
-		while (iterator.hasNext()) {
-			Annotation annotation = (Annotation) iterator.next();
-			// obtain the underlying annotations
-			AnnotationSet underlyingAS = obtainUnderlyingAnnotations(inputAS,
-					annotation, attributeAnnotationType);
-			if (underlyingAS == null || underlyingAS.isEmpty()) {
-				continue;
-			}
-			List list = new ArrayList();
-			Iterator iter = underlyingAS.iterator();
-			while (iter.hasNext()) {
-				Annotation annot = (Annotation) iter.next();
-				if (annot.getFeatures().containsKey(attributeAnnotationValue)) {
-					list.add(annot);
-				}
+		trace = startTrace();
+		try {
+			classifySpans(inputAS, textAS);
+		} finally {
+			// the events of the document reach the file even if it failed
+			if (trace != null)
+				trace.flush();
+			trace = null;
+		}
+		fireProcessFinished();
+	}
+
+	// classifies the spans of the current document
+	private void classifySpans(AnnotationSet inputAS, AnnotationSet textAS)
+			throws ExecutionException {
+		long documentStart = trace != null ? trace.now() : 0l;
+		extractTime = 0l;
+		lookupTime = 0l;
+		classifyTime = 0l;
+		writeTime = 0l;
+		FeatureCache cache = FeatureCache.forURL(featureCacheDir);
+		List<FeatureCache.Span> spans = null;
+		if (cache != null) {
+			spans = cachedSpans(cache, inputAS, textAS);
+			if (trace != null)
+				trace.complete("extract", "Classifier", documentStart,
+						"spans", Integer.valueOf(spans.size()));
+		}
+		String[] labels = this.applier.getLabels();
+		SpanLabels results = null;
+		if (DOCUMENT_OUTPUT.equals(outputMode))
+			results = new SpanLabels(labels, spans != null ? spans.size()
+					: textAS.size());
+		List<FeatureCache.Span> deferred = new ArrayList<FeatureCache.Span>();
+		int numSpans = 0;
+		if (spans != null) {
+			numSpans = spans.size();
+			for (int s = 0; s < spans.size(); s++)
+				processSpan(spans.get(s), labels, inputAS, results, deferred);
+		} else {
+			// without cache the values of each span are extracted just
+			// before it is classified and are not kept
+			Iterator<Annotation> iterator = textAS.iterator();
+			while (iterator.hasNext()) {
+				long start = trace != null ? System.nanoTime() : 0l;
+				FeatureCache.Span span = FeatureCache.extract(inputAS,
+						iterator.next(), attributeAnnotationType,
+						attributeAnnotationValue, null);
+				if (trace != null)
+					extractTime += System.nanoTime() - start;
+				if (span == null)
+					continue;
+				numSpans++;
+				processSpan(span, labels, inputAS, results, deferred);
 			}
-			// make underlyingAS eligible for garbage collection
-			underlyingAS = null;
-			// sort them
-			Collections.sort(list, new OffsetComparator());
-			String[] values = new String[list.size()];
-			String[] labels = this.applier.getLabels();
-			// else obtain the value of each feature (componentAnnotationValue)
-			for (int i = 0; i < list.size(); i++) {
-				Annotation annot = (Annotation) list.get(i);
-				values[i] = (String) annot.getFeatures().get(
-						attributeAnnotationValue);
+		}
+		// the oversized spans are classified last, as long as the budget
+		// allows it, and truncated after that
+		long budget = deferredTimeBudget != null ? deferredTimeBudget
+				.longValue() : -1;
+		long deadline = System.currentTimeMillis() + budget;
+		for (int s = 0; s < deferred.size(); s++) {
+			boolean inTime = budget < 0
+					|| System.currentTimeMillis() < deadline;
+			classifySpan(deferred.get(s), inTime ? null : TRUNCATE_POLICY,
+					labels, inputAS, results);
+		}
+		if (results != null) {
+			long start = trace != null ? System.nanoTime() : 0l;
+			results.seal();
+			document.getFeatures().put(
+					labelAnnotationValue + SpanLabels.FEATURE_SUFFIX, results);
+			if (trace != null)
+				writeTime += System.nanoTime() - start;
+		}
+		if (trace != null)
+			trace.complete("Classifier", "Classifier", documentStart,
+					"document", document.getName(), "spans", Integer
+							.valueOf(numSpans), "deferred", Integer
+							.valueOf(deferred.size()), "extractMicros", Long
+							.valueOf(extractTime / 1000), "lookupMicros", Long
+							.valueOf(lookupTime / 1000), "classifyMicros",
+					Long.valueOf(classifyTime / 1000), "writeMicros", Long
+							.valueOf(writeTime / 1000));
+	}
+
+	// recorder for the current document, null if it is not traced
+	private TraceRecorder startTrace() throws ExecutionException {
+		try {
+			tracer = TraceRecorder.update(tracer, tracePath);
+		} catch (IOException e) {
+			throw new ExecutionException(e);
+		}
+		if (tracer == null
+				|| !TraceRecorder.sample(documentsSeen++, traceSampleRate))
+			return null;
+		return tracer;
+	}
+
+	public void cleanup() {
+		TraceRecorder.release(tracer);
+		tracer = null;
+		super.cleanup();
+	}
+
+	/**
+	 * Classifies a span unless it is oversized and the policy is to defer it,
+	 * in which case it is added to the deferred spans
+	 */
+	private void processSpan(FeatureCache.Span span, String[] labels,
+			AnnotationSet inputAS, SpanLabels results,
+			List<FeatureCache.Span> deferred) throws ExecutionException {
+		spanSizes.add(span.values.length);
+		if (maxSpanLength != null && maxSpanLength.intValue() > 0
+				&& span.values.length > maxSpanLength.intValue()
+				&& DEFER_POLICY.equals(oversizedSpanPolicy)) {
+			deferred.add(span);
+			return;
+		}
+		classifySpan(span, oversizedSpanPolicy, labels, inputAS, results);
+	}
+
+	/**
+	 * Classifies a span and stores its label, the policy is applied if the
+	 * span is longer than maxSpanLength
+	 */
+	private void classifySpan(FeatureCache.Span span, String policy,
+			String[] labels, AnnotationSet inputAS, SpanLabels results)
+			throws ExecutionException {
+		long start = System.nanoTime();
+		long traceStart = trace != null ? trace.now() : 0l;
+		String[] values = span.values;
+		int max = maxSpanLength != null ? maxSpanLength.intValue() : -1;
+		double[] scores;
+		if (max > 0 && values.length > max && TRUNCATE_POLICY.equals(policy)) {
+			String[] truncated = new String[max];
+			System.arraycopy(values, 0, truncated, 0, max);
+			scores = classify(truncated);
+		} else if (max > 0 && values.length > max
+				&& WINDOW_POLICY.equals(policy)) {
+			// average of the scores of consecutive windows weighted by their
+			// length
+			scores = new double[labels.length];
+			String[] window = new String[max];
+			for (int offset = 0; offset < values.length; offset += max) {
+				int length = Math.min(max, values.length - offset);
+				if (length != window.length)
+					window = new String[length];
+				System.arraycopy(values, offset, window, 0, length);
+				double[] windowScores = classify(window);
+				for (int l = 0; l < scores.length && l < windowScores.length; l++)
+					scores[l] += windowScores[l] * length / values.length;
 			}
-			Document newDocument = this.applier.createDocument(values);
-			double[] scores = new double[labels.length];
-			int bestlabel = 0;
-			double bestscore = 0d;
-			try {
-				scores = this.applier.classify(newDocument);
-				for (int l = 0; l < scores.length; l++) {
-					if (scores[l] > bestscore) {
-						bestscore = scores[l];
-						bestlabel = l;
-					}
-				}
-			} catch (Exception e) {
-				throw new ExecutionException(e);
+		} else
+			scores = classify(values);
+		int bestlabel = 0;
+		double bestscore = 0d;
+		for (int l = 0; l < scores.length; l++) {
+			if (scores[l] > bestscore) {
+				bestscore = scores[l];
+				bestlabel = l;
 			}
+		}
+		long writeStart = System.nanoTime();
+		spanTimes.add((writeStart - start) / 1000);
+		if (results != null) {
+			results.add(span.annotationId, bestlabel, bestscore);
+		} else {
 			// create a new label for this entity
 			// find out the feature of type textAnnotationValue
-			annotation.getFeatures()
-					.put(labelAnnotationValue, labels[bestlabel]);
+			Annotation annotation = inputAS.get(Integer
+					.valueOf(span.annotationId));
+			annotation.getFeatures().put(labelAnnotationValue,
+					labels[bestlabel]);
 			annotation.getFeatures().put(
 					labelAnnotationValue + labelAnnotationScore,
 					new Double(bestscore));
 		}
-		fireProcessFinished();
+		if (trace != null) {
+			writeTime += System.nanoTime() - writeStart;
+			trace.complete("span", "Classifier", traceStart, "values", Integer
+					.valueOf(span.values.length), "label", labels[bestlabel]);
+		}
+	}
+
+	private double[] classify(String[] values) throws ExecutionException {
+		long start = trace != null ? System.nanoTime() : 0l;
+		Document newDocument = this.applier.createDocument(values);
+		if (trace != null) {
+			long now = System.nanoTime();
+			lookupTime += now - start;
+			start = now;
+		}
+		try {
+			if (scorer != null)
+				return scorer.classify(newDocument);
+			return this.applier.classify(newDocument);
+		} catch (Exception e) {
+			throw new ExecutionException(e);
+		} finally {
+			if (trace != null)
+				classifyTime += System.nanoTime() - start;
+		}
 	}
 
 	/**
-	 * The method, given input AnnotationSet, parent annotation and the type of
-	 * underlying annotations, returns the annotationSet that consists of
-	 * underlying annotations withing the parent's annotation's boundaries
-	 * 
-	 * @param inputAS
-	 * @param parent
-	 * @param annotationType
-	 * @return
+	 * Returns the values of the attributes for each span annotation, from the
+	 * feature cache if it has them for this document, otherwise they are
+	 * extracted and stored in the cache
 	 */
-	private AnnotationSet obtainUnderlyingAnnotations(AnnotationSet inputAS,
-			Annotation parent, String annotationType) {
-		AnnotationSet set = inputAS.getContained(parent.getStartNode()
-				.getOffset(), parent.getEndNode().getOffset());
-		if (set == null || set.isEmpty()) {
-			return null;
+	private List<FeatureCache.Span> cachedSpans(FeatureCache cache,
+			AnnotationSet inputAS, AnnotationSet textAS)
+			throws ExecutionException {
+		String config = FeatureCache.config(inputAnnotationSet,
+				labelAnnotationType, textAS.size(), labelAnnotationValue,
+				attributeAnnotationType, attributeAnnotationValue);
+		List<FeatureCache.Span> spans = cache.load(document, config, false);
+		if (spans != null
+				&& FeatureCache.isValid(spans, inputAS, textAS, null,
+						attributeAnnotationType, attributeAnnotationValue))
+			return spans;
+		spans = new ArrayList<FeatureCache.Span>();
+		Iterator<Annotation> iterator = textAS.iterator();
+		while (iterator.hasNext()) {
+			FeatureCache.Span span = FeatureCache.extract(inputAS, iterator
+					.next(), attributeAnnotationType,
+					attributeAnnotationValue, null);
+			if (span != null)
+				spans.add(span);
 		}
-		return set.get(annotationType);
+		try {
+			cache.store(document, config, false, spans);
+		} catch (IOException e) {
+			throw new ExecutionException(e);
+		}
+		return spans;
 	}
 
 	/**
@@ -222,6 +491,14 @@ public class ClassifierPR extends AbstractLanguageAnalyser implements
 		if (attributeAnnotationValue == null
 				|| attributeAnnotationValue.trim().length() == 0)
 			throw new ExecutionException("componentAnnotationValue is null!");
+		if (!ANNOTATION_OUTPUT.equals(outputMode)
+				&& !DOCUMENT_OUTPUT.equals(outputMode))
+			throw new ExecutionException("Unknown outputMode " + outputMode);
+		if (!TRUNCATE_POLICY.equals(oversizedSpanPolicy)
+				&& !WINDOW_POLICY.equals(oversizedSpanPolicy)
+				&& !DEFER_POLICY.equals(oversizedSpanPolicy))
+			throw new ExecutionException("Unknown oversizedSpanPolicy "
+					+ oversizedSpanPolicy);
 	}
 
 	public String getAttributeAnnotationType() {
@@ -271,4 +548,81 @@ public class ClassifierPR extends AbstractLanguageAnalyser implements
 	public void setModelDir(URL modelDir) {
 		this.modelDir = modelDir;
 	}
+
+	public String getOutputMode() {
+		return outputMode;
+	}
+
+	public void setOutputMode(String outputMode) {
+		this.outputMode = outputMode;
+	}
+
+	public Integer getMaxSpanLength() {
+		return maxSpanLength;
+	}
+
+	public void setMaxSpanLength(Integer maxSpanLength) {
+		this.maxSpanLength = maxSpanLength;
+	}
+
+	public String getOversizedSpanPolicy() {
+		return oversizedSpanPolicy;
+	}
+
+	public void setOversizedSpanPolicy(String oversizedSpanPolicy) {
+		this.oversizedSpanPolicy = oversizedSpanPolicy;
+	}
+
+	public Integer getDeferredTimeBudget() {
+		return deferredTimeBudget;
+	}
+
+	public void setDeferredTimeBudget(Integer deferredTimeBudget) {
+		this.deferredTimeBudget = deferredTimeBudget;
+	}
+
+	/** Distribution of the number of values per span since init() **/
+	public Histogram getSpanSizeHistogram() {
+		return spanSizes;
+	}
+
+	/**
+	 * Distribution of the time in microseconds spent classifying a span since
+	 * init()
+	 **/
+	public Histogram getSpanTimeHistogram() {
+		return spanTimes;
+	}
+
+	public URL getFeatureCacheDir() {
+		return featureCacheDir;
+	}
+
+	public void setFeatureCacheDir(URL featureCacheDir) {
+		this.featureCacheDir = featureCacheDir;
+	}
+
+	public URL getTracePath() {
+		return tracePath;
+	}
+
+	public void setTracePath(URL tracePath) {
+		this.tracePath = tracePath;
+	}
+
+	public Double getTraceSampleRate() {
+		return traceSampleRate;
+	}
+
+	public void setTraceSampleRate(Double traceSampleRate) {
+		this.traceSampleRate = traceSampleRate;
+	}
+
+	public Integer getWarmUpDocuments() {
+		return warmUpDocuments;
+	}
+
+	public void setWarmUpDocuments(Integer warmUpDocuments) {
+		this.warmUpDocuments = warmUpDocuments;
+	}
 }
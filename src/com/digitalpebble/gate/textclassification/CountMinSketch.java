@@ -0,0 +1,86 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+/**
+ * Count-min sketch giving an estimate of the number of times a string has
+ * been added, using a fixed amount of memory. The estimate is never lower
+ * than the actual count and is only higher when the counters of the string
+ * are shared with other strings in every row. The counters are incremented
+ * with the conservative update i.e. only the lowest ones are raised.
+ **/
+final class CountMinSketch {
+
+	private final int depth;
+
+	private final int mask;
+
+	// depth rows of width counters
+	private final int[] counters;
+
+	/** width is rounded up to a power of two **/
+	CountMinSketch(int depth, int width) {
+		int capacity = 1;
+		while (capacity < width)
+			capacity <<= 1;
+		this.depth = depth;
+		this.mask = capacity - 1;
+		this.counters = new int[depth * capacity];
+	}
+
+	/** Adds one occurrence of a value and returns its new estimated count **/
+	int add(String value) {
+		long hash = hash(value);
+		int min = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++)
+			min = Math.min(min, counters[index(hash, row)]);
+		int estimate = min == Integer.MAX_VALUE ? min : min + 1;
+		for (int row = 0; row < depth; row++) {
+			int index = index(hash, row);
+			if (counters[index] < estimate)
+				counters[index] = estimate;
+		}
+		return estimate;
+	}
+
+	/** Estimated number of occurrences of a value **/
+	int estimate(String value) {
+		long hash = hash(value);
+		int min = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++)
+			min = Math.min(min, counters[index(hash, row)]);
+		return min;
+	}
+
+	// the positions in the rows are derived from two halves of the hash
+	private int index(long hash, int row) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		return row * (mask + 1) + ((h1 + row * h2) & mask);
+	}
+
+	// 64 bits FNV-1a hash with its bits mixed
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		return hash ^ (hash >>> 33);
+	}
+}
@@ -0,0 +1,418 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.DocumentContent;
+import gate.corpora.DocumentContentImpl;
+import gate.util.OffsetComparator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of the values extracted from the documents by the
+ * TrainingCorpusCreatorPR and the ClassifierPR. For each span the cache keeps
+ * the id and offsets of the span annotation, its label and the sorted values
+ * of the attribute annotations it contains so that a later run with the same
+ * extraction parameters on an unchanged document does not need to extract
+ * and sort the values again; they are only hashed to check that they have
+ * not changed, see {@link #isValid}. The content of the document is checked
+ * without copying it. There is one file per
+ * document and configuration, in which the values are stored once and
+ * referenced by their position.
+ **/
+final class FeatureCache {
+
+	private static final int MAGIC = 0x54434643;
+
+	private static final int VERSION = 2;
+
+	private final File directory;
+
+	/** Values extracted for a span annotation **/
+	static final class Span {
+
+		final int annotationId;
+
+		final long start;
+
+		final long end;
+
+		// null if the span has no label
+		final String label;
+
+		final String[] values;
+
+		Span(int annotationId, long start, long end, String label,
+				String[] values) {
+			this.annotationId = annotationId;
+			this.start = start;
+			this.end = end;
+			this.label = label;
+			this.values = values;
+		}
+
+	}
+
+	FeatureCache(File directory) {
+		this.directory = directory;
+		directory.mkdirs();
+	}
+
+	/** Returns the cache for a directory URL or null if there is none **/
+	static FeatureCache forURL(URL url) {
+		if (url == null || !"file".equals(url.getProtocol()))
+			return null;
+		return new FeatureCache(new File(URI.create(url.toExternalForm())));
+	}
+
+	/**
+	 * Describes the extraction parameters, the number of span annotations is
+	 * included so that the cache is not used if spans have been added or
+	 * removed
+	 **/
+	static String config(String inputAnnotationSet, String spanType,
+			int numSpans, String labelFeature, String attributeType,
+			String attributeFeature) {
+		return inputAnnotationSet + '|' + spanType + '|' + numSpans + '|'
+				+ labelFeature + '|' + attributeType + '|' + attributeFeature;
+	}
+
+	/**
+	 * Checks that the span annotations still exist with the same offsets as
+	 * when their values were cached, that the values of the attribute
+	 * annotations they contain are still the same and, if labelFeature is not
+	 * null, that they still have the same label. The attribute values are
+	 * compared with an order-independent hash, which is cheaper than
+	 * extracting them again as they are neither sorted nor copied. The spans
+	 * which were not cached must still have no attribute annotation.
+	 **/
+	static boolean isValid(List<Span> spans, AnnotationSet inputAS,
+			AnnotationSet spanAS, String labelFeature, String attributeType,
+			String attributeFeature) {
+		Map<Integer, Span> cached = new HashMap<Integer, Span>();
+		for (int s = 0; s < spans.size(); s++)
+			cached.put(Integer.valueOf(spans.get(s).annotationId), spans
+					.get(s));
+		int found = 0;
+		Iterator<Annotation> iter = spanAS.iterator();
+		while (iter.hasNext()) {
+			Annotation annotation = iter.next();
+			Span span = cached.get(annotation.getId());
+			long current = valuesHash(inputAS, annotation, attributeType,
+					attributeFeature);
+			if (span == null) {
+				if (current != NO_ATTRIBUTES)
+					return false;
+				continue;
+			}
+			found++;
+			if (annotation.getStartNode().getOffset().longValue() != span.start
+					|| annotation.getEndNode().getOffset().longValue() != span.end
+					|| current != valuesHash(span.values))
+				return false;
+			if (labelFeature == null)
+				continue;
+			Object label = annotation.getFeatures().get(labelFeature);
+			String currentLabel = label instanceof String ? (String) label
+					: null;
+			if (currentLabel == null ? span.label != null : !currentLabel
+					.equals(span.label))
+				return false;
+		}
+		return found == spans.size();
+	}
+
+	// returned by valuesHash for a span without attribute annotation
+	private static final long NO_ATTRIBUTES = Long.MIN_VALUE;
+
+	// hash of the values of the attribute annotations contained in a span,
+	// selected like in extract() but not sorted
+	private static long valuesHash(AnnotationSet inputAS, Annotation span,
+			String attributeType, String attributeFeature) {
+		AnnotationSet set = inputAS.getContained(span.getStartNode()
+				.getOffset(), span.getEndNode().getOffset());
+		if (set == null || set.isEmpty())
+			return NO_ATTRIBUTES;
+		AnnotationSet underlyingAS = set.get(attributeType);
+		if (underlyingAS == null || underlyingAS.isEmpty())
+			return NO_ATTRIBUTES;
+		long hash = 0;
+		Iterator<Annotation> iter = underlyingAS.iterator();
+		while (iter.hasNext()) {
+			Annotation annot = iter.next();
+			if (annot.getFeatures().containsKey(attributeFeature))
+				hash += valueHash(annot.getFeatures().get(attributeFeature));
+		}
+		return hash;
+	}
+
+	private static long valuesHash(String[] values) {
+		long hash = 0;
+		for (int i = 0; i < values.length; i++)
+			hash += valueHash(values[i]);
+		return hash;
+	}
+
+	// the sum of the hashes does not depend on the order of the values, the
+	// bits are mixed so that it is not dominated by a few values
+	private static long valueHash(Object value) {
+		long hash = (value != null ? value.hashCode() : 0) + 1l;
+		hash *= 0x9e3779b97f4a7c15L;
+		return hash ^ (hash >>> 29);
+	}
+
+	/**
+	 * Extracts the values of the attributes contained in each span, or
+	 * returns null for the spans without any attribute annotation
+	 **/
+	static Span extract(AnnotationSet inputAS, Annotation span,
+			String attributeType, String attributeFeature, String labelFeature) {
+		AnnotationSet set = inputAS.getContained(span.getStartNode()
+				.getOffset(), span.getEndNode().getOffset());
+		if (set == null || set.isEmpty())
+			return null;
+		AnnotationSet underlyingAS = set.get(attributeType);
+		if (underlyingAS == null || underlyingAS.isEmpty())
+			return null;
+		List<Annotation> list = new ArrayList<Annotation>();
+		Iterator<Annotation> iter = underlyingAS.iterator();
+		while (iter.hasNext()) {
+			Annotation annot = iter.next();
+			if (annot.getFeatures().containsKey(attributeFeature))
+				list.add(annot);
+		}
+		Collections.sort(list, new OffsetComparator());
+		String[] values = new String[list.size()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = (String) list.get(i).getFeatures().get(
+					attributeFeature);
+		Object label = labelFeature != null ? span.getFeatures().get(
+				labelFeature) : null;
+		return new Span(span.getId().intValue(), span.getStartNode()
+				.getOffset().longValue(), span.getEndNode().getOffset()
+				.longValue(), label instanceof String ? (String) label : null,
+				values);
+	}
+
+	/**
+	 * Returns the spans cached for the document and configuration, or null if
+	 * they are not in the cache, if the document has changed or if the labels
+	 * are required but were not stored
+	 **/
+	List<Span> load(gate.Document document, String config, boolean needLabels) {
+		String key = key(document, config);
+		File file = file(key);
+		if (!file.exists())
+			return null;
+		DocumentContent content = document.getContent();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION
+					|| !key.equals(readString(in))
+					|| in.readLong() != content.size().longValue()
+					|| in.readInt() != contentHash(content))
+				return null;
+			boolean hasLabels = in.readBoolean();
+			if (needLabels && !hasLabels)
+				return null;
+			String[] strings = new String[readVInt(in)];
+			for (int i = 0; i < strings.length; i++)
+				strings[i] = readString(in);
+			int numSpans = readVInt(in);
+			List<Span> spans = new ArrayList<Span>(numSpans);
+			for (int s = 0; s < numSpans; s++) {
+				int id = readVInt(in);
+				long start = readVLong(in);
+				long end = start + readVLong(in);
+				String label = string(strings, readVInt(in));
+				String[] values = new String[readVInt(in)];
+				for (int i = 0; i < values.length; i++)
+					values[i] = string(strings, readVInt(in));
+				spans.add(new Span(id, start, end, label, values));
+			}
+			return spans;
+		} catch (IOException e) {
+			// corrupted or truncated entry : extract the values again
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	/** Stores the spans of the document for the given configuration **/
+	void store(gate.Document document, String config, boolean hasLabels,
+			List<Span> spans) throws IOException {
+		String key = key(document, config);
+		DocumentContent content = document.getContent();
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		List<String> strings = new ArrayList<String>();
+		id(null, ids, strings);
+		for (int s = 0; s < spans.size(); s++) {
+			Span span = spans.get(s);
+			id(span.label, ids, strings);
+			for (int i = 0; i < span.values.length; i++)
+				id(span.values[i], ids, strings);
+		}
+		File file = file(key);
+		File tmp = new File(directory, file.getName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, key);
+			out.writeLong(content.size().longValue());
+			out.writeInt(contentHash(content));
+			out.writeBoolean(hasLabels);
+			// the first position stands for null and is not written
+			writeVInt(out, strings.size() - 1);
+			for (int i = 1; i < strings.size(); i++)
+				writeString(out, strings.get(i));
+			writeVInt(out, spans.size());
+			for (int s = 0; s < spans.size(); s++) {
+				Span span = spans.get(s);
+				writeVInt(out, span.annotationId);
+				writeVLong(out, span.start);
+				writeVLong(out, span.end - span.start);
+				writeVInt(out, ids.get(span.label).intValue());
+				writeVInt(out, span.values.length);
+				for (int i = 0; i < span.values.length; i++)
+					writeVInt(out, ids.get(span.values[i]).intValue());
+			}
+		} finally {
+			out.close();
+		}
+		if (file.exists())
+			file.delete();
+		if (!tmp.renameTo(file))
+			throw new IOException("Can't rename " + tmp + " into " + file);
+	}
+
+	// the document is identified by its URL or its name if it has none
+	private static String key(gate.Document document, String config) {
+		URL source = document.getSourceUrl();
+		String id = source != null ? source.toExternalForm() : document
+				.getName();
+		return id + '\n' + config;
+	}
+
+	/**
+	 * Hash of the String held by a DocumentContentImpl, which toString()
+	 * returns without copying it and which caches its hash. The other
+	 * implementations are only checked on their size.
+	 **/
+	private static int contentHash(DocumentContent content) {
+		if (content instanceof DocumentContentImpl)
+			return content.toString().hashCode();
+		return 0;
+	}
+
+	private File file(String key) {
+		// 64 bits FNV-1a hash of the key
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return new File(directory, Long.toHexString(hash) + ".cache");
+	}
+
+	private static void id(String value, Map<String, Integer> ids,
+			List<String> strings) {
+		if (ids.containsKey(value))
+			return;
+		ids.put(value, Integer.valueOf(strings.size()));
+		strings.add(value);
+	}
+
+	// the strings are referenced by their position + 1, 0 stands for null
+	private static String string(String[] strings, int position) {
+		return position == 0 ? null : strings[position - 1];
+	}
+
+	// UTF-8 bytes prefixed by their number, unlike writeUTF there is no limit
+	// on the length of the string
+	static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		writeVInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readVInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	static void writeVInt(DataOutputStream out, int value)
+			throws IOException {
+		writeVLong(out, value & 0xFFFFFFFFL);
+	}
+
+	static void writeVLong(DataOutputStream out, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static int readVInt(DataInputStream in) throws IOException {
+		return (int) readVLong(in);
+	}
+
+	static long readVLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new EOFException("Malformed variable length number");
+	}
+
+	private static void close(DataInputStream in) {
+		if (in == null)
+			return;
+		try {
+			in.close();
+		} catch (IOException e) {
+		}
+	}
+}
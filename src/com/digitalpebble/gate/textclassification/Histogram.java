@@ -0,0 +1,97 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of positive values with one bucket per power of two, used to
+ * follow the distribution of the span sizes and processing times without
+ * keeping the values. The percentiles are approximated by the upper bound
+ * of their bucket.
+ **/
+public final class Histogram {
+
+	private final long[] buckets = new long[64];
+
+	private long count;
+
+	private long max;
+
+	private long sum;
+
+	public void add(long value) {
+		if (value < 0)
+			value = 0;
+		buckets[bucket(value)]++;
+		count++;
+		sum += value;
+		if (value > max)
+			max = value;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? 0d : (double) sum / count;
+	}
+
+	/** Upper bound of the values below which a ratio q of the values fall **/
+	public long percentile(double q) {
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(q * count);
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), max);
+		}
+		return max;
+	}
+
+	public void clear() {
+		Arrays.fill(buckets, 0);
+		count = 0;
+		max = 0;
+		sum = 0;
+	}
+
+	// bucket 0 holds 0, bucket i the values in [2^(i-1), 2^i - 1]
+	private static int bucket(long value) {
+		return 64 - Long.numberOfLeadingZeros(value);
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket == 0)
+			return 0;
+		if (bucket >= 63)
+			return Long.MAX_VALUE;
+		return (1L << bucket) - 1;
+	}
+
+	public String toString() {
+		return "count=" + count + " mean=" + Math.round(getMean()) + " p50<="
+				+ percentile(0.5) + " p90<=" + percentile(0.9) + " p99<="
+				+ percentile(0.99) + " max=" + max;
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.DocumentContent;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.Resource;
+import gate.corpora.DocumentContentImpl;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ExecutionException;
+import gate.creole.ResourceInstantiationException;
+import gate.util.InvalidOffsetException;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Identifies the language of spans (e.g. Sentence) or of the whole document
+ * from the char n-grams of their text, with the profiles generated by the
+ * LanguageProfileTrainer. The n-grams are hashed while going through the
+ * content of the document, without using the tokens or creating any object,
+ * and the scores of all the languages are updated for each n-gram.
+ **/
+public class LanguageIdentifierPR extends AbstractLanguageAnalyser implements
+		ProcessingResource {
+
+	/** File containing the language profiles **/
+	private URL profile;
+
+	private String inputAnnotationSet;
+
+	/**
+	 * Type of the annotations whose language is identified, the language of the
+	 * whole document is stored as a document feature if empty
+	 */
+	private String labelAnnotationType;
+
+	/** Feature holding the language **/
+	private String labelAnnotationValue;
+
+	private String labelAnnotationScore = "_score";
+
+	private LanguageProfile languages;
+
+	// hashes of the n-grams ending at the current char
+	private long[] hashes;
+
+	private final Scorer scorer = new Scorer();
+
+	// probability of the language found by the last call to identify()
+	private double score;
+
+	// adds the weights of the n-grams to the scores of the languages
+	private static final class Scorer implements LanguageProfile.NGramSink {
+		LanguageProfile profile;
+
+		double[] scores;
+
+		public void add(int bucket) {
+			profile.score(bucket, scores);
+		}
+	}
+
+	public Resource init() throws ResourceInstantiationException {
+		if (profile == null)
+			throw new ResourceInstantiationException(
+					"profile is required and cannot be null");
+		if (!"file".equals(profile.getProtocol()))
+			throw new ResourceInstantiationException(
+					"profile must be a file: URL");
+		try {
+			languages = LanguageProfile.load(new File(URI.create(profile
+					.toExternalForm())));
+		} catch (Exception e) {
+			throw new ResourceInstantiationException(e);
+		}
+		hashes = new long[languages.getMaxLength()];
+		scorer.profile = languages;
+		scorer.scores = new double[languages.getLanguages().length];
+		fireProcessFinished();
+		return this;
+	}
+
+	public void reInit() throws ResourceInstantiationException {
+		init();
+	}
+
+	public void execute() throws ExecutionException {
+		if (document == null)
+			throw new ExecutionException("Document is null!");
+		if (labelAnnotationValue == null
+				|| labelAnnotationValue.trim().length() == 0)
+			throw new ExecutionException("labelAnnotationValue is null!");
+		DocumentContent content = document.getContent();
+		// the content of a DocumentContentImpl is a String returned as is by
+		// toString(), the other implementations are only read span by span
+		String text = content instanceof DocumentContentImpl ? content
+				.toString() : null;
+		String[] names = languages.getLanguages();
+		if (labelAnnotationType == null
+				|| labelAnnotationType.trim().length() == 0) {
+			if (text == null)
+				text = content.toString();
+			int best = identify(text, 0, text.length());
+			if (best != -1)
+				store(document.getFeatures(), names[best]);
+			fireProcessFinished();
+			return;
+		}
+		AnnotationSet inputAS = inputAnnotationSet == null
+				|| inputAnnotationSet.trim().length() == 0 ? document
+				.getAnnotations() : document.getAnnotations(inputAnnotationSet);
+		Iterator<Annotation> spans = inputAS.get(labelAnnotationType)
+				.iterator();
+		while (spans.hasNext()) {
+			Annotation span = spans.next();
+			Long start = span.getStartNode().getOffset();
+			Long end = span.getEndNode().getOffset();
+			int best;
+			if (text != null)
+				best = identify(text, start.intValue(), end.intValue());
+			else {
+				String spanText;
+				try {
+					spanText = content.getContent(start, end).toString();
+				} catch (InvalidOffsetException e) {
+					throw new ExecutionException(e);
+				}
+				best = identify(spanText, 0, spanText.length());
+			}
+			if (best != -1)
+				store(span.getFeatures(), names[best]);
+		}
+		fireProcessFinished();
+	}
+
+	private void store(FeatureMap features, String language) {
+		features.put(labelAnnotationValue, language);
+		features.put(labelAnnotationValue + labelAnnotationScore,
+				Double.valueOf(score));
+	}
+
+	/**
+	 * Returns the index of the most likely language for text[start, end) or -1
+	 * if it has no letters
+	 */
+	private int identify(CharSequence text, int start, int end) {
+		double[] scores = scorer.scores;
+		Arrays.fill(scores, 0d);
+		int count = LanguageProfile.hash(text, start, end, languages
+				.getMaxLength(), languages.getBits(), hashes, scorer);
+		if (count == 0)
+			return -1;
+		int best = 0;
+		for (int l = 1; l < scores.length; l++)
+			if (scores[l] > scores[best])
+				best = l;
+		// probability of the best language given the n-grams
+		double sum = 0d;
+		for (int l = 0; l < scores.length; l++)
+			sum += Math.exp(scores[l] - scores[best]);
+		score = 1d / sum;
+		return best;
+	}
+
+	public URL getProfile() {
+		return profile;
+	}
+
+	public void setProfile(URL profile) {
+		this.profile = profile;
+	}
+
+	public String getInputAnnotationSet() {
+		return inputAnnotationSet;
+	}
+
+	public void setInputAnnotationSet(String inputAnnotationSet) {
+		this.inputAnnotationSet = inputAnnotationSet;
+	}
+
+	public String getLabelAnnotationType() {
+		return labelAnnotationType;
+	}
+
+	public void setLabelAnnotationType(String labelAnnotationType) {
+		this.labelAnnotationType = labelAnnotationType;
+	}
+
+	public String getLabelAnnotationValue() {
+		return labelAnnotationValue;
+	}
+
+	public void setLabelAnnotationValue(String labelAnnotationValue) {
+		this.labelAnnotationValue = labelAnnotationValue;
+	}
+}
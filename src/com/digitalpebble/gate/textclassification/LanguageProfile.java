@@ -0,0 +1,174 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Character n-gram profiles of a set of languages, used by the
+ * LanguageIdentifierPR. The n-grams are taken within the words, lowercased
+ * and padded with a space on each side, and hashed into a fixed number of
+ * buckets. For each bucket the profile holds the log-probability of the
+ * bucket in each language (naive Bayes), the languages of a bucket being
+ * contiguous so that the scores of all the languages are updated in one pass.
+ **/
+final class LanguageProfile {
+
+	/** Name of the profile file written in the corpus directory by default **/
+	static final String FILE_NAME = "languages.profile";
+
+	private static final int MAGIC = 0x4c504631;
+
+	private static final int VERSION = 1;
+
+	private static final long OFFSET = 0xcbf29ce484222325L;
+
+	private static final long PRIME = 0x100000001b3L;
+
+	/** Receives the bucket of each n-gram of a text **/
+	interface NGramSink {
+		void add(int bucket);
+	}
+
+	private final String[] languages;
+
+	private final int maxLength;
+
+	private final int bits;
+
+	// log-probabilities indexed by bucket * number of languages + language
+	private final float[] weights;
+
+	LanguageProfile(String[] languages, int maxLength, int bits,
+			float[] weights) {
+		this.languages = languages;
+		this.maxLength = maxLength;
+		this.bits = bits;
+		this.weights = weights;
+	}
+
+	String[] getLanguages() {
+		return languages;
+	}
+
+	int getMaxLength() {
+		return maxLength;
+	}
+
+	int getBits() {
+		return bits;
+	}
+
+	/**
+	 * Sends the buckets of the n-grams of text[start, end) to the sink and
+	 * returns their number. hashes must have maxLength elements, it holds the
+	 * hashes of the n-grams ending at the current char and is passed by the
+	 * caller so that nothing is allocated.
+	 **/
+	static int hash(CharSequence text, int start, int end, int maxLength,
+			int bits, long[] hashes, NGramSink sink) {
+		int mask = (1 << bits) - 1;
+		int count = 0;
+		// number of chars of the current word, leading space included
+		int length = 0;
+		for (int i = start; i <= end; i++) {
+			char c = i < end ? text.charAt(i) : ' ';
+			if (i < end && Character.isLetter(c)) {
+				if (length == 0)
+					count += push(' ', length++, maxLength, mask, hashes, sink);
+				count += push(Character.toLowerCase(c), length++, maxLength,
+						mask, hashes, sink);
+			} else if (length > 0) {
+				count += push(' ', length, maxLength, mask, hashes, sink);
+				length = 0;
+			}
+		}
+		return count;
+	}
+
+	// hashes of the n-grams ending with c, from those ending at the previous
+	// char of the word
+	private static int push(char c, int length, int maxLength, int mask,
+			long[] hashes, NGramSink sink) {
+		int n = Math.min(length + 1, maxLength);
+		for (int k = n - 1; k > 0; k--)
+			hashes[k] = (hashes[k - 1] ^ c) * PRIME;
+		hashes[0] = (OFFSET ^ c) * PRIME;
+		int count = 0;
+		// the space alone says nothing about the language
+		for (int k = c == ' ' ? 1 : 0; k < n; k++) {
+			long hash = hashes[k];
+			hash ^= hash >>> 29;
+			hash *= 0xbf58476d1ce4e5b9L;
+			hash ^= hash >>> 32;
+			sink.add((int) hash & mask);
+			count++;
+		}
+		return count;
+	}
+
+	/** Adds the log-probabilities of the bucket in each language to scores **/
+	void score(int bucket, double[] scores) {
+		int base = bucket * languages.length;
+		for (int l = 0; l < scores.length; l++)
+			scores[l] += weights[base + l];
+	}
+
+	static LanguageProfile load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(file + " is not a language profile");
+			int maxLength = in.readInt();
+			int bits = in.readInt();
+			String[] languages = new String[in.readInt()];
+			for (int l = 0; l < languages.length; l++)
+				languages[l] = in.readUTF();
+			float[] weights = new float[languages.length << bits];
+			for (int i = 0; i < weights.length; i++)
+				weights[i] = in.readFloat();
+			return new LanguageProfile(languages, maxLength, bits, weights);
+		} finally {
+			in.close();
+		}
+	}
+
+	void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(maxLength);
+			out.writeInt(bits);
+			out.writeInt(languages.length);
+			for (int l = 0; l < languages.length; l++)
+				out.writeUTF(languages[l]);
+			for (int i = 0; i < weights.length; i++)
+				out.writeFloat(weights[i]);
+		} finally {
+			out.close();
+		}
+	}
+}
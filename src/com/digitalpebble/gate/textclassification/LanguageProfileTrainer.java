@@ -0,0 +1,147 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Map;
+
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.Parameters;
+
+/**
+ * Builds the language profiles used by the LanguageIdentifierPR from a
+ * corpus generated by the TrainingCorpusCreatorPR with the language as label
+ * and the words as attributes (e.g. Token.string). The char n-grams of each
+ * word are counted as many times as the word occurs in the documents of a
+ * language and the log-probabilities of the buckets are estimated with
+ * additive smoothing.
+ **/
+public class LanguageProfileTrainer {
+
+	private int maxLength = 3;
+
+	private int bits = 16;
+
+	private double alpha = 0.5d;
+
+	/** Counts the n-grams of the words of the documents of each language **/
+	LanguageProfile train(File corpusDir) throws IOException {
+		Lexicon lexicon = new Lexicon(new File(corpusDir,
+				Parameters.lexiconName).getPath());
+		String[] languages = lexicon.getLabels();
+		Map<Integer, String> terms = lexicon.getInvertedIndex();
+		long[][] counts = new long[languages.length][1 << bits];
+		long[] hashes = new long[maxLength];
+		Counter counter = new Counter();
+		BufferedReader reader = new BufferedReader(new FileReader(new File(
+				corpusDir, Parameters.rawName)));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// SimpleDocument label length id:freq ...
+				String[] fields = line.split("\t");
+				if (fields.length < 3)
+					continue;
+				counter.counts = counts[Integer.parseInt(fields[1])];
+				for (int i = 3; i < fields.length; i++) {
+					int colon = fields[i].indexOf(':');
+					String term = terms.get(Integer.valueOf(fields[i]
+							.substring(0, colon)));
+					if (term == null)
+						continue;
+					counter.freq = Integer.parseInt(fields[i]
+							.substring(colon + 1));
+					LanguageProfile.hash(term, 0, term.length(), maxLength,
+							bits, hashes, counter);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		int buckets = 1 << bits;
+		float[] weights = new float[languages.length * buckets];
+		for (int l = 0; l < languages.length; l++) {
+			long total = 0;
+			for (int b = 0; b < buckets; b++)
+				total += counts[l][b];
+			double norm = Math.log(total + alpha * buckets);
+			for (int b = 0; b < buckets; b++)
+				weights[b * languages.length + l] = (float) (Math
+						.log(counts[l][b] + alpha) - norm);
+		}
+		return new LanguageProfile(languages, maxLength, bits, weights);
+	}
+
+	/** Trains the profiles from a corpus and writes them into a file **/
+	public void train(File corpusDir, File output) throws IOException {
+		train(corpusDir).save(output);
+	}
+
+	// adds the frequency of the current word to its n-grams
+	private static final class Counter implements LanguageProfile.NGramSink {
+		long[] counts;
+
+		int freq;
+
+		public void add(int bucket) {
+			counts[bucket] += freq;
+		}
+	}
+
+	/** Length of the longest n-grams **/
+	public void setMaxLength(int maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	/** The n-grams are hashed into 2^bits buckets **/
+	public void setBits(int bits) {
+		this.bits = bits;
+	}
+
+	/** Added to the count of each bucket **/
+	public void setAlpha(double alpha) {
+		this.alpha = alpha;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File corpusDir = null;
+		File output = null;
+		LanguageProfileTrainer trainer = new LanguageProfileTrainer();
+		for (int i = 0; i < args.length - 1; i += 2) {
+			if ("-corpus".equals(args[i]))
+				corpusDir = new File(args[i + 1]);
+			else if ("-output".equals(args[i]))
+				output = new File(args[i + 1]);
+			else if ("-n".equals(args[i]))
+				trainer.setMaxLength(Integer.parseInt(args[i + 1]));
+			else if ("-bits".equals(args[i]))
+				trainer.setBits(Integer.parseInt(args[i + 1]));
+			else if ("-alpha".equals(args[i]))
+				trainer.setAlpha(Double.parseDouble(args[i + 1]));
+		}
+		if (corpusDir == null) {
+			System.err
+					.println("LanguageProfileTrainer -corpus dir [-output file] [-n 3] [-bits 16] [-alpha 0.5]");
+			System.exit(-1);
+		}
+		if (output == null)
+			output = new File(corpusDir, LanguageProfile.FILE_NAME);
+		trainer.train(corpusDir, output);
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.Parameters;
+
+/**
+ * Hashes of the terms of a model lexicon and of their prefixes, used by the
+ * NGram PR to only generate the n-grams known to the model. The hash of an
+ * n-gram is computed incrementally from the hash of the n-gram it extends so
+ * that the combinations which can't lead to a term of the lexicon are
+ * discarded before their value is built. The strings are hashed as if their
+ * whitespaces had been replaced by underscores like in the SimpleDocuments
+ * of the TextClassification API, including when a sequence of whitespaces
+ * spans several values : the lowest bit of the hash tells whether the last
+ * character was a whitespace. Two strings with the same hash are
+ * indistinguishable : a collision lets an unknown n-gram through, which is
+ * then simply ignored by the classifier.
+ **/
+final class LexiconFilter {
+
+	private static final long OFFSET = 0xcbf29ce484222325L;
+
+	private static final long PRIME = 0x100000001b3L;
+
+	// lowest bit of a hash : the last character hashed was a whitespace
+	private static final long AFTER_SPACE = 1L;
+
+	private final String separator;
+
+	// hashes of the terms
+	private final LongSet terms;
+
+	// hashes of the beginnings of the terms which end with a separator
+	private final LongSet prefixes;
+
+	LexiconFilter(Lexicon lexicon, String separator) {
+		this.separator = separator;
+		Map<Integer, String> index = lexicon.getInvertedIndex();
+		terms = new LongSet(index.size());
+		prefixes = new LongSet(index.size());
+		Iterator<String> iter = index.values().iterator();
+		while (iter.hasNext())
+			add(iter.next());
+	}
+
+	/** Lexicon file of the latest version of a model **/
+	static File lexiconFile(File modelDir) {
+		return new File(ModelVersions.latest(modelDir), Parameters.lexiconName);
+	}
+
+	/** Loads a lexicon file, see {@link #lexiconFile(File)} **/
+	static LexiconFilter load(File lexicon, String separator)
+			throws IOException {
+		return new LexiconFilter(new Lexicon(lexicon.getPath()), separator);
+	}
+
+	/** Same normalisation as the SimpleDocuments of the API **/
+	static String normalise(String value) {
+		return value.replaceAll("\\s+", "_");
+	}
+
+	private void add(String term) {
+		term = normalise(term);
+		String end = normalise(separator);
+		long hash = OFFSET & ~AFTER_SPACE;
+		for (int i = 0; i < term.length(); i++) {
+			hash = extend(hash, term.charAt(i));
+			// the beginning of the term up to the end of a separator, any
+			// beginning if the separator is empty
+			int start = i + 1 - end.length();
+			if (start >= 0 && term.startsWith(end, start))
+				prefixes.add(hash);
+		}
+		terms.add(hash);
+	}
+
+	/** Hash of a string **/
+	static long hash(String value) {
+		return extend(OFFSET & ~AFTER_SPACE, value);
+	}
+
+	/** Hash of the concatenation of a string to the string with a given hash **/
+	static long extend(long hash, String value) {
+		for (int i = 0; i < value.length(); i++)
+			hash = extend(hash, value.charAt(i));
+		return hash;
+	}
+
+	// a sequence of whitespaces is hashed as a single underscore
+	private static long extend(long hash, char c) {
+		if (isSpace(c)) {
+			if ((hash & AFTER_SPACE) != 0)
+				return hash;
+			return ((hash ^ '_') * PRIME) | AFTER_SPACE;
+		}
+		return (((hash & ~AFTER_SPACE) ^ c) * PRIME) & ~AFTER_SPACE;
+	}
+
+	// same characters as \s in a regular expression
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000b'
+				|| c == '\f' || c == '\r';
+	}
+
+	/** Hash of an n-gram extended with the separator and a new value **/
+	long combine(long hash, String value) {
+		return extend(extend(hash, separator), value);
+	}
+
+	/** Whether the string with the given hash is a term of the lexicon **/
+	boolean isTerm(long hash) {
+		return terms.contains(hash & ~AFTER_SPACE);
+	}
+
+	/**
+	 * Whether some terms of the lexicon start with the string with the given
+	 * hash followed by the separator
+	 **/
+	boolean isPrefix(long hash) {
+		return prefixes.contains(extend(hash, separator) & ~AFTER_SPACE);
+	}
+
+	int size() {
+		return terms.size();
+	}
+
+	// open addressing set of longs
+	private static final class LongSet {
+
+		private long[] keys;
+
+		private boolean[] used;
+
+		private int size;
+
+		LongSet(int expected) {
+			int capacity = 16;
+			while (capacity < expected * 2)
+				capacity <<= 1;
+			keys = new long[capacity];
+			used = new boolean[capacity];
+		}
+
+		void add(long key) {
+			int slot = slot(keys, used, key);
+			if (used[slot])
+				return;
+			keys[slot] = key;
+			used[slot] = true;
+			if (++size * 2 > keys.length)
+				grow();
+		}
+
+		boolean contains(long key) {
+			return used[slot(keys, used, key)];
+		}
+
+		int size() {
+			return size;
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			boolean[] oldUsed = used;
+			keys = new long[oldKeys.length << 1];
+			used = new boolean[oldKeys.length << 1];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (!oldUsed[i])
+					continue;
+				int slot = slot(keys, used, oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				used[slot] = true;
+			}
+		}
+
+		// slot of the key or of the first free position where it would go
+		private static int slot(long[] keys, boolean[] used, long key) {
+			int mask = keys.length - 1;
+			int slot = (int) (key ^ (key >>> 32)) & mask;
+			while (used[slot] && keys[slot] != key)
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+	}
+}
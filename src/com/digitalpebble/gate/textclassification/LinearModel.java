@@ -0,0 +1,274 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import com.digitalpebble.classification.liblinear.LibLinearClassifier;
+
+import de.bwaldvogel.liblinear.Model;
+
+/**
+ * Mutable copy of a liblinear model which can be updated and saved in the
+ * format read by {@link LibLinearClassifier}. The weights are stored like in
+ * liblinear i.e. the weights of a given feature for all the columns are
+ * contiguous. There is one column per label except for binary models which
+ * have a single one, positive for the first label.
+ **/
+final class LinearModel {
+
+	/** Classifier to declare in the lexicon of the models we write **/
+	static final String CLASSIFIER_TYPE = LibLinearClassifier.class.getName();
+
+	static final String DEFAULT_SOLVER = "L2R_LR";
+
+	private static final String MCSVM_CS = "MCSVM_CS";
+
+	private String solverType;
+
+	private int[] labels;
+
+	private int nrFeature;
+
+	private double bias;
+
+	private int nrW;
+
+	private double[] w;
+
+	// weights of the bias feature or null if the model has no bias
+	private double[] biasWeights;
+
+	/** Creates an empty model without any label or feature **/
+	LinearModel(String solverType, double bias) {
+		this.solverType = solverType;
+		this.bias = bias;
+		this.labels = new int[0];
+		this.nrW = 1;
+		this.w = new double[0];
+		this.biasWeights = bias >= 0 ? new double[1] : null;
+	}
+
+	/**
+	 * Creates a model from weights already laid out per feature ; the bias
+	 * weights if any are expected after the last feature
+	 **/
+	LinearModel(String solverType, int[] labels, int nrFeature, double bias,
+			double[] weights) {
+		this.solverType = solverType;
+		this.labels = labels;
+		this.nrFeature = nrFeature;
+		this.bias = bias;
+		this.nrW = columns(labels.length);
+		this.w = new double[nrFeature * nrW];
+		System.arraycopy(weights, 0, w, 0, w.length);
+		if (bias >= 0) {
+			biasWeights = new double[nrW];
+			System.arraycopy(weights, w.length, biasWeights, 0, nrW);
+		}
+	}
+
+	/** Loads a model saved by liblinear or by {@link #save(File)} **/
+	static LinearModel load(File file) throws IOException {
+		Model model = Model.load(file);
+		String solver = DEFAULT_SOLVER;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String header = reader.readLine();
+			if (header != null && header.startsWith("solver_type "))
+				solver = header.substring("solver_type ".length()).trim();
+		} finally {
+			reader.close();
+		}
+		return new LinearModel(solver, model.getLabels(),
+				model.getNrFeature(), model.getBias(), model.getFeatureWeights());
+	}
+
+	/** Saves the model in the liblinear text format **/
+	void save(File file) throws IOException {
+		Writer writer = new BufferedWriter(new FileWriter(file));
+		try {
+			writer.write("solver_type " + solverType + "\n");
+			writer.write("nr_class " + labels.length + "\n");
+			writer.write("label");
+			for (int i = 0; i < labels.length; i++)
+				writer.write(" " + labels[i]);
+			writer.write("\n");
+			writer.write("nr_feature " + nrFeature + "\n");
+			writer.write("bias " + bias + "\n");
+			writer.write("w\n");
+			StringBuilder line = new StringBuilder();
+			for (int f = 0; f < nrFeature; f++) {
+				line.setLength(0);
+				for (int c = 0; c < nrW; c++)
+					line.append(w[f * nrW + c]).append(' ');
+				line.append('\n');
+				writer.write(line.toString());
+			}
+			if (biasWeights != null) {
+				line.setLength(0);
+				for (int c = 0; c < nrW; c++)
+					line.append(biasWeights[c]).append(' ');
+				line.append('\n');
+				writer.write(line.toString());
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Computes the decision value of each column for a sparse vector with
+	 * 1-based indices, features unknown to the model are ignored
+	 **/
+	void decisionValues(int[] indices, double[] values, double[] decisions) {
+		for (int c = 0; c < nrW; c++)
+			decisions[c] = 0;
+		for (int i = 0; i < indices.length; i++) {
+			int index = indices[i];
+			if (index < 1 || index > nrFeature)
+				continue;
+			int base = (index - 1) * nrW;
+			for (int c = 0; c < nrW; c++)
+				decisions[c] += w[base + c] * values[i];
+		}
+		if (biasWeights != null)
+			for (int c = 0; c < nrW; c++)
+				decisions[c] += biasWeights[c] * bias;
+	}
+
+	/** Returns the label predicted from the decision values like liblinear **/
+	int predict(double[] decisions) {
+		if (labels.length == 2)
+			return decisions[0] > 0 ? labels[0] : labels[1];
+		int best = 0;
+		for (int c = 1; c < labels.length; c++)
+			if (decisions[c] > decisions[best])
+				best = c;
+		return labels[best];
+	}
+
+	/**
+	 * Adds weight to the given feature and column, the model grows if the
+	 * feature is beyond the current number of features
+	 **/
+	void addWeight(int index, int column, double weight) {
+		if (index > nrFeature)
+			growFeatures(index);
+		w[(index - 1) * nrW + column] += weight;
+	}
+
+	void addBiasWeight(int column, double weight) {
+		if (biasWeights != null)
+			biasWeights[column] += weight;
+	}
+
+	/** Multiplies all the weights by a constant **/
+	void scale(double factor) {
+		for (int i = 0; i < w.length; i++)
+			w[i] *= factor;
+		if (biasWeights != null)
+			for (int c = 0; c < nrW; c++)
+				biasWeights[c] *= factor;
+	}
+
+	void growFeatures(int newNrFeature) {
+		if (newNrFeature <= nrFeature)
+			return;
+		double[] newW = new double[newNrFeature * nrW];
+		System.arraycopy(w, 0, newW, 0, w.length);
+		w = newW;
+		nrFeature = newNrFeature;
+	}
+
+	/**
+	 * Returns the column of the label in the model, adding it if necessary.
+	 * When a binary model gets a third label, its column is split into one
+	 * column per label so that the predictions do not change.
+	 **/
+	int addLabel(int label) {
+		for (int i = 0; i < labels.length; i++)
+			if (labels[i] == label)
+				return i;
+		int[] newLabels = new int[labels.length + 1];
+		System.arraycopy(labels, 0, newLabels, 0, labels.length);
+		newLabels[labels.length] = label;
+		int newNrW = columns(newLabels.length);
+		if (newNrW != nrW && nrW == 1 && labels.length == 2) {
+			// single column for the first label becomes w, -w, 0...
+			double[] newW = new double[nrFeature * newNrW];
+			for (int f = 0; f < nrFeature; f++) {
+				newW[f * newNrW] = w[f];
+				newW[f * newNrW + 1] = -w[f];
+			}
+			w = newW;
+			if (biasWeights != null) {
+				double[] newBias = new double[newNrW];
+				newBias[0] = biasWeights[0];
+				newBias[1] = -biasWeights[0];
+				biasWeights = newBias;
+			}
+		} else if (newNrW != nrW) {
+			// one column per label : add an empty one
+			double[] newW = new double[nrFeature * newNrW];
+			for (int f = 0; f < nrFeature; f++)
+				System.arraycopy(w, f * nrW, newW, f * newNrW, nrW);
+			w = newW;
+			if (biasWeights != null) {
+				double[] newBias = new double[newNrW];
+				System.arraycopy(biasWeights, 0, newBias, 0, nrW);
+				biasWeights = newBias;
+			}
+		}
+		labels = newLabels;
+		nrW = newNrW;
+		return labels.length - 1;
+	}
+
+	// number of weight columns for a number of labels, as in liblinear
+	private int columns(int nrClass) {
+		if (nrClass <= 2 && !MCSVM_CS.equals(solverType))
+			return 1;
+		return nrClass;
+	}
+
+	int[] getLabels() {
+		return labels;
+	}
+
+	int getNrFeature() {
+		return nrFeature;
+	}
+
+	/** Number of weight columns **/
+	int getNrW() {
+		return nrW;
+	}
+
+	double getBias() {
+		return bias;
+	}
+
+	String getSolverType() {
+		return solverType;
+	}
+}
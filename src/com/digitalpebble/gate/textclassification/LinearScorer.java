@@ -0,0 +1,239 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.File;
+import java.lang.reflect.Field;
+
+import com.digitalpebble.classification.Document;
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.TextClassifier;
+import com.digitalpebble.classification.Vector;
+import com.digitalpebble.classification.liblinear.LibLinearClassifier;
+
+import de.bwaldvogel.liblinear.Model;
+
+/**
+ * Scores documents with the weights of a liblinear model without going
+ * through the FeatureNode objects built by {@link LibLinearClassifier} for
+ * each document. The weights of a feature for all the labels are contiguous
+ * in liblinear's array, which is shared with the classifier and read in a
+ * single pass over the features of the document ; the inner loop over the
+ * labels is a plain loop over contiguous doubles that the JIT can vectorise.
+ * The decision values are accumulated in the same order as liblinear and the
+ * features are filtered like in {@link LibLinearClassifier}, which keeps the
+ * indices up to the number of features of the model and then adds the bias
+ * feature. This differs from Linear.predictValues on its own, which also
+ * uses an index of the document equal to the number of features + 1 and
+ * multiplies it by the weight of the bias. The scorer is checked against its
+ * classifier when the ClassifierPR is warmed up and with
+ * {@link #main(String[])}. Not thread safe.
+ **/
+final class LinearScorer {
+
+	/** Number of synthetic documents classified to check a scorer **/
+	static final int CHECKED_DOCUMENTS = 256;
+
+	private final Lexicon lexicon;
+
+	private final double[] w;
+
+	private final int[] labels;
+
+	private final int nrFeature;
+
+	private final double bias;
+
+	// number of weights per feature : 1 for a binary model
+	private final int nrW;
+
+	private final double[] decisions;
+
+	// offsets in w and values of the features of the current document
+	private int[] offsets = new int[64];
+
+	private double[] featureValues = new double[64];
+
+	private LinearScorer(Lexicon lexicon, Model model, double[] w) {
+		this.lexicon = lexicon;
+		this.w = w;
+		this.labels = model.getLabels();
+		this.nrFeature = model.getNrFeature();
+		this.bias = model.getBias();
+		this.nrW = w.length / (nrFeature + (bias >= 0 ? 1 : 0));
+		this.decisions = new double[nrW];
+	}
+
+	/**
+	 * Returns a scorer for the model of a classifier, or null if it is not a
+	 * liblinear classifier returning the predicted label only or if the
+	 * private fields the scorer is built from can't be read. These fields are
+	 * only known for the version {@link ModelLexicon#API_VERSION} of the
+	 * TextClassification API.
+	 **/
+	static LinearScorer forClassifier(TextClassifier classifier) {
+		if (!(classifier instanceof LibLinearClassifier))
+			return null;
+		if (!ModelLexicon.isSupportedAPI())
+			return null;
+		try {
+			if (field(LibLinearClassifier.class, "flag_predict_probability")
+					.getBoolean(null))
+				return null;
+			Model model = (Model) field(LibLinearClassifier.class,
+					"liblinearModel").get(classifier);
+			if (model == null)
+				return null;
+			double[] w = (double[]) field(Model.class, "w").get(model);
+			if (model.getNrFeature() + (model.getBias() >= 0 ? 1 : 0) == 0)
+				return null;
+			return new LinearScorer(WarmUp.lexicon(classifier), model, w);
+		} catch (NoSuchFieldException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (SecurityException e) {
+			return null;
+		}
+	}
+
+	private static Field field(Class<?> type, String name)
+			throws NoSuchFieldException {
+		Field field = type.getDeclaredField(name);
+		field.setAccessible(true);
+		return field;
+	}
+
+	/**
+	 * Same result as {@link LibLinearClassifier#classify(Document)} : 1 for
+	 * the index of the predicted label, 0 for the others
+	 **/
+	double[] classify(Document document) {
+		Vector vector = document.getFeatureVector(lexicon);
+		int label = predict(vector.getIndices(), vector.getValues());
+		double[] scores = new double[Math.max(labels.length, label + 1)];
+		scores[label] = 1d;
+		return scores;
+	}
+
+	/** Label predicted for a sparse vector with 1-based indices **/
+	int predict(int[] indices, double[] values) {
+		decisionValues(indices, values, decisions);
+		if (labels.length == 2)
+			return decisions[0] > 0 ? labels[0] : labels[1];
+		int best = 0;
+		for (int c = 1; c < labels.length; c++)
+			if (decisions[c] > decisions[best])
+				best = c;
+		return labels[best];
+	}
+
+	/**
+	 * Computes the decision values of a sparse vector, the indices above the
+	 * number of features of the model are ignored like in
+	 * {@link LibLinearClassifier}. The bias feature comes last like in
+	 * liblinear.
+	 **/
+	void decisionValues(int[] indices, double[] values, double[] decisions) {
+		for (int c = 0; c < nrW; c++)
+			decisions[c] = 0;
+		if (nrW == 1) {
+			double decision = 0;
+			for (int i = 0; i < indices.length; i++) {
+				int index = indices[i];
+				if (index >= 1 && index <= nrFeature)
+					decision += w[index - 1] * values[i];
+			}
+			if (bias >= 0)
+				decision += w[nrFeature] * bias;
+			decisions[0] = decision;
+			return;
+		}
+		if (offsets.length < indices.length) {
+			offsets = new int[indices.length];
+			featureValues = new double[indices.length];
+		}
+		int n = 0;
+		for (int i = 0; i < indices.length; i++) {
+			int index = indices[i];
+			if (index < 1 || index > nrFeature)
+				continue;
+			offsets[n] = (index - 1) * nrW;
+			featureValues[n++] = values[i];
+		}
+		// four features per pass over the decision values, each of them is
+		// still the sum of the products in the order of the features
+		int f = 0;
+		for (; f + 4 <= n; f += 4) {
+			int b0 = offsets[f], b1 = offsets[f + 1];
+			int b2 = offsets[f + 2], b3 = offsets[f + 3];
+			double v0 = featureValues[f], v1 = featureValues[f + 1];
+			double v2 = featureValues[f + 2], v3 = featureValues[f + 3];
+			for (int c = 0; c < nrW; c++) {
+				double decision = decisions[c];
+				decision += w[b0 + c] * v0;
+				decision += w[b1 + c] * v1;
+				decision += w[b2 + c] * v2;
+				decision += w[b3 + c] * v3;
+				decisions[c] = decision;
+			}
+		}
+		for (; f < n; f++)
+			axpy(w, offsets[f], featureValues[f], decisions, nrW);
+		if (bias >= 0)
+			axpy(w, nrFeature * nrW, bias, decisions, nrW);
+	}
+
+	// decisions[c] += w[base + c] * value for all the columns
+	private static void axpy(double[] w, int base, double value,
+			double[] decisions, int nrW) {
+		for (int c = 0; c < nrW; c++)
+			decisions[c] += w[base + c] * value;
+	}
+
+	/**
+	 * Checks that the scorer predicts the same labels as the classifier of
+	 * the latest version of a model
+	 **/
+	public static void main(String[] args) throws Exception {
+		File modelDir = null;
+		int documents = CHECKED_DOCUMENTS;
+		for (int i = 0; i < args.length - 1; i += 2) {
+			if ("-model".equals(args[i]))
+				modelDir = new File(args[i + 1]);
+			else if ("-documents".equals(args[i]))
+				documents = Integer.parseInt(args[i + 1]);
+		}
+		if (modelDir == null) {
+			System.err
+					.println("LinearScorer -model dir [-documents "
+							+ CHECKED_DOCUMENTS + "]");
+			System.exit(-1);
+		}
+		TextClassifier classifier = TextClassifier.getClassifier(ModelVersions
+				.latest(modelDir));
+		LinearScorer scorer = forClassifier(classifier);
+		if (scorer == null) {
+			System.out.println("No scorer for this model");
+			return;
+		}
+		int differences = WarmUp.compare(classifier, scorer, documents);
+		System.out.println(differences + " documents out of " + documents
+				+ " classified differently");
+		if (differences > 0)
+			System.exit(1);
+	}
+}
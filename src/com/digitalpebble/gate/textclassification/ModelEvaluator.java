@@ -0,0 +1,513 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.digitalpebble.classification.Document;
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.Parameters;
+import com.digitalpebble.classification.SimpleDocument;
+import com.digitalpebble.classification.TextClassifier;
+import com.digitalpebble.classification.Vector;
+import com.digitalpebble.classification.Parameters.WeightingMethod;
+
+import de.bwaldvogel.liblinear.FeatureNode;
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Problem;
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * Evaluates the corpora generated by the TrainingCorpusCreatorPR with k-fold
+ * cross-validation. Each corpus directory and weighting scheme is a
+ * configuration for which the precision and recall per label are reported
+ * along with the time needed to train a model, the number of documents
+ * classified per second and the size of the model, so that the settings of
+ * the NGram or of the weighting can be compared on speed as well as on
+ * accuracy. The weights of each fold are computed with the document
+ * frequencies of its training documents only. The folds are trained in
+ * parallel, then tested one after another through the same classification
+ * path as the ClassifierPR, from the values of the documents to the label.
+ **/
+public class ModelEvaluator {
+
+	private int folds = 5;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private SolverType solver = SolverType.L2R_LR;
+
+	private double c = 1d;
+
+	private double bias = -1d;
+
+	private long seed = 0;
+
+	/** Results of one or more folds for a configuration **/
+	static class Evaluation {
+
+		final String[] labelNames;
+
+		// per label
+		final int[] truePositives;
+
+		final int[] falsePositives;
+
+		final int[] falseNegatives;
+
+		int documents;
+
+		int correct;
+
+		long trainingMillis;
+
+		long classificationNanos;
+
+		long modelBytes;
+
+		int runs;
+
+		Evaluation(String[] labelNames) {
+			this.labelNames = labelNames;
+			truePositives = new int[labelNames.length];
+			falsePositives = new int[labelNames.length];
+			falseNegatives = new int[labelNames.length];
+		}
+
+		void add(int expected, int predicted) {
+			documents++;
+			if (expected == predicted) {
+				correct++;
+				truePositives[expected]++;
+				return;
+			}
+			if (predicted >= 0 && predicted < falsePositives.length)
+				falsePositives[predicted]++;
+			falseNegatives[expected]++;
+		}
+
+		void add(Evaluation fold) {
+			for (int i = 0; i < labelNames.length; i++) {
+				truePositives[i] += fold.truePositives[i];
+				falsePositives[i] += fold.falsePositives[i];
+				falseNegatives[i] += fold.falseNegatives[i];
+			}
+			documents += fold.documents;
+			correct += fold.correct;
+			trainingMillis += fold.trainingMillis;
+			classificationNanos += fold.classificationNanos;
+			modelBytes += fold.modelBytes;
+			runs += fold.runs;
+		}
+
+		double precision(int label) {
+			int predicted = truePositives[label] + falsePositives[label];
+			return predicted == 0 ? 0d : (double) truePositives[label]
+					/ predicted;
+		}
+
+		double recall(int label) {
+			int expected = truePositives[label] + falseNegatives[label];
+			return expected == 0 ? 0d : (double) truePositives[label]
+					/ expected;
+		}
+
+		double accuracy() {
+			return documents == 0 ? 0d : (double) correct / documents;
+		}
+
+		/** Number of documents classified per second **/
+		double throughput() {
+			if (classificationNanos == 0)
+				return 0d;
+			return documents * 1000000000d / classificationNanos;
+		}
+
+		String report() {
+			StringBuilder buffer = new StringBuilder();
+			buffer.append("label\tprecision\trecall\tsupport\n");
+			for (int i = 0; i < labelNames.length; i++) {
+				int support = truePositives[i] + falseNegatives[i];
+				if (support == 0 && falsePositives[i] == 0)
+					continue;
+				buffer.append(labelNames[i]).append('\t');
+				buffer.append(format(precision(i))).append('\t');
+				buffer.append(format(recall(i))).append('\t');
+				buffer.append(support).append('\n');
+			}
+			buffer.append("accuracy\t").append(format(accuracy())).append(
+					'\n');
+			int n = Math.max(runs, 1);
+			buffer.append("training time (msec)\t").append(
+					trainingMillis / n).append('\n');
+			buffer.append("throughput (docs/sec)\t").append(
+					Math.round(throughput())).append('\n');
+			buffer.append("model size (bytes)\t").append(modelBytes / n)
+					.append('\n');
+			return buffer.toString();
+		}
+
+		private static String format(double d) {
+			return Double.toString(Math.round(d * 10000d) / 10000d);
+		}
+	}
+
+	/**
+	 * Cross-validates the corpus found in corpusDir, using the weighting
+	 * scheme of its lexicon if method is null
+	 **/
+	Evaluation evaluate(File corpusDir, WeightingMethod method)
+			throws IOException {
+		File lexiconFile = new File(corpusDir, Parameters.lexiconName);
+		Lexicon lexicon = new Lexicon(lexiconFile.getPath());
+		final Corpus corpus = new Corpus(new File(corpusDir,
+				Parameters.rawName));
+
+		// random but reproducible assignment of the documents to the folds
+		final int size = corpus.lines.size();
+		final int[] fold = new int[size];
+		for (int i = 0; i < size; i++)
+			fold[i] = i % folds;
+		Random random = new Random(seed);
+		for (int i = size - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = fold[i];
+			fold[i] = fold[j];
+			fold[j] = tmp;
+		}
+
+		final String[] labelNames = lexicon.getLabels();
+		final File[] modelDirs = new File[folds];
+		List<Callable<Evaluation>> tasks = new ArrayList<Callable<Evaluation>>();
+		for (int f = 0; f < folds; f++) {
+			final int testFold = f;
+			final File modelDir = File.createTempFile("fold" + f, "");
+			modelDir.delete();
+			modelDirs[f] = modelDir;
+			final ModelLexicon foldLexicon = new ModelLexicon(lexiconFile
+					.getPath());
+			if (method != null)
+				foldLexicon.setMethod(method);
+			tasks.add(new Callable<Evaluation>() {
+				public Evaluation call() throws Exception {
+					return trainFold(corpus, fold, testFold, foldLexicon,
+							labelNames, modelDir);
+				}
+			});
+		}
+
+		Evaluation total = new Evaluation(labelNames);
+		Linear.resetRandom();
+		// the folds would compete for liblinear's random generator
+		int poolSize = ModelTrainer.isDeterministic(solver) ? Math.min(
+				threads, folds) : 1;
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+		try {
+			List<Future<Evaluation>> results = pool.invokeAll(tasks);
+			pool.shutdown();
+			// the folds are tested one after another so that their
+			// throughput is not affected by the training of the others
+			for (int f = 0; f < folds; f++) {
+				Evaluation evaluation = results.get(f).get();
+				testFold(corpus, fold, f, modelDirs[f], lexicon
+						.getInvertedIndex(), evaluation);
+				total.add(evaluation);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Evaluation interrupted");
+		} catch (ExecutionException e) {
+			throw asIOException(e.getCause());
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw asIOException(e);
+		} finally {
+			pool.shutdown();
+			for (int f = 0; f < folds; f++)
+				delete(modelDirs[f]);
+		}
+		return total;
+	}
+
+	/** Documents of a raw file **/
+	private static class Corpus {
+
+		// serialisation of the documents
+		final List<String> lines = new ArrayList<String>();
+
+		final List<int[]> indices = new ArrayList<int[]>();
+
+		final List<int[]> freqs = new ArrayList<int[]>();
+
+		final List<Integer> labels = new ArrayList<Integer>();
+
+		// SimpleDocument label length id:freq ...
+		Corpus(File raw) throws IOException {
+			BufferedReader reader = new BufferedReader(new FileReader(raw));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t");
+					if (fields.length < 3
+							|| !"SimpleDocument".equals(fields[0]))
+						continue;
+					int[] ids = new int[fields.length - 3];
+					int[] counts = new int[ids.length];
+					for (int i = 0; i < ids.length; i++) {
+						int colon = fields[i + 3].indexOf(':');
+						ids[i] = Integer.parseInt(fields[i + 3].substring(0,
+								colon));
+						counts[i] = Integer.parseInt(fields[i + 3]
+								.substring(colon + 1));
+					}
+					lines.add(line);
+					indices.add(ids);
+					freqs.add(counts);
+					labels.add(Integer.valueOf(fields[1]));
+				}
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	// trains a model on all the folds but one with the document frequencies
+	// of these folds only and saves it with its lexicon in modelDir
+	private Evaluation trainFold(Corpus corpus, int[] fold, int testFold,
+			ModelLexicon lexicon, String[] labelNames, File modelDir)
+			throws IOException {
+		int size = corpus.lines.size();
+		int trainingSize = 0;
+		Map<Integer, String> terms = lexicon.getInvertedIndex();
+		int maxIndex = 0;
+		Iterator<Integer> indices = terms.keySet().iterator();
+		while (indices.hasNext())
+			maxIndex = Math.max(maxIndex, indices.next().intValue());
+		int[] docFreqs = new int[maxIndex + 1];
+		for (int i = 0; i < size; i++) {
+			if (fold[i] == testFold)
+				continue;
+			trainingSize++;
+			int[] ids = corpus.indices.get(i);
+			for (int j = 0; j < ids.length; j++)
+				if (ids[j] <= maxIndex)
+					docFreqs[ids[j]]++;
+		}
+		// the terms which only occur in the test fold are ignored
+		lexicon.setDocNum(trainingSize);
+		indices = terms.keySet().iterator();
+		while (indices.hasNext()) {
+			int index = indices.next().intValue();
+			lexicon.setDocFreq(index, docFreqs[index]);
+		}
+
+		Problem training = new Problem();
+		training.l = trainingSize;
+		training.bias = bias;
+		training.x = new FeatureNode[trainingSize][];
+		training.y = new int[trainingSize];
+		int trainPos = 0;
+		for (int i = 0; i < size; i++) {
+			if (fold[i] == testFold)
+				continue;
+			Vector vector = SimpleDocument.parse(corpus.lines.get(i))
+					.getFeatureVector(lexicon);
+			int[] vectorIndices = vector.getIndices();
+			double[] values = vector.getValues();
+			int length = bias >= 0 ? vectorIndices.length + 1
+					: vectorIndices.length;
+			FeatureNode[] nodes = new FeatureNode[length];
+			for (int j = 0; j < vectorIndices.length; j++)
+				nodes[j] = new FeatureNode(vectorIndices[j], values[j]);
+			if (vectorIndices.length > 0)
+				training.n = Math.max(training.n,
+						vectorIndices[vectorIndices.length - 1]);
+			training.x[trainPos] = nodes;
+			training.y[trainPos++] = corpus.labels.get(i).intValue();
+		}
+		if (bias >= 0) {
+			training.n++;
+			for (int i = 0; i < training.l; i++)
+				training.x[i][training.x[i].length - 1] = new FeatureNode(
+						training.n, bias);
+		}
+
+		Evaluation evaluation = new Evaluation(labelNames);
+		evaluation.runs = 1;
+		ModelTrainer trainer = new ModelTrainer();
+		trainer.setSolver(solver);
+		trainer.setC(c);
+		trainer.setBias(bias);
+		trainer.setThreads(1);
+		long start = System.currentTimeMillis();
+		LinearModel model = trainer.train(training);
+		evaluation.trainingMillis = System.currentTimeMillis() - start;
+
+		modelDir.mkdirs();
+		lexicon.setClassifierType(LinearModel.CLASSIFIER_TYPE);
+		lexicon.saveToFile(new File(modelDir, Parameters.lexiconName)
+				.getPath());
+		File modelFile = new File(modelDir, Parameters.modelName);
+		model.save(modelFile);
+		evaluation.modelBytes = modelFile.length();
+		return evaluation;
+	}
+
+	// classifies the documents of the test fold like the ClassifierPR does,
+	// from their values to the label
+	private void testFold(Corpus corpus, int[] fold, int testFold,
+			File modelDir, Map<Integer, String> terms, Evaluation evaluation)
+			throws Exception {
+		List<String[]> tokens = new ArrayList<String[]>();
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < corpus.lines.size(); i++) {
+			if (fold[i] != testFold)
+				continue;
+			// the values of the document, as many times as they occur
+			List<String> values = new ArrayList<String>();
+			int[] ids = corpus.indices.get(i);
+			int[] counts = corpus.freqs.get(i);
+			for (int j = 0; j < ids.length; j++) {
+				String term = terms.get(Integer.valueOf(ids[j]));
+				if (term == null)
+					continue;
+				for (int k = 0; k < counts[j]; k++)
+					values.add(term);
+			}
+			tokens.add(values.toArray(new String[values.size()]));
+			expected.add(corpus.labels.get(i));
+		}
+
+		TextClassifier classifier = TextClassifier.getClassifier(modelDir);
+		LinearScorer scorer = LinearScorer.forClassifier(classifier);
+		String[] predictions = new String[tokens.size()];
+		long startNanos = System.nanoTime();
+		for (int i = 0; i < predictions.length; i++) {
+			Document doc = classifier.createDocument(tokens.get(i));
+			double[] scores = scorer != null ? scorer.classify(doc)
+					: classifier.classify(doc);
+			predictions[i] = classifier.getBestLabel(scores);
+		}
+		evaluation.classificationNanos = System.nanoTime() - startNanos;
+
+		Map<String, Integer> labelIndices = new HashMap<String, Integer>();
+		for (int i = 0; i < evaluation.labelNames.length; i++)
+			labelIndices.put(evaluation.labelNames[i], Integer.valueOf(i));
+		for (int i = 0; i < predictions.length; i++) {
+			Integer predicted = labelIndices.get(predictions[i]);
+			evaluation.add(expected.get(i).intValue(), predicted == null ? -1
+					: predicted.intValue());
+		}
+	}
+
+	private static void delete(File modelDir) {
+		File[] files = modelDir.listFiles();
+		if (files != null)
+			for (int i = 0; i < files.length; i++)
+				files[i].delete();
+		modelDir.delete();
+	}
+
+	private static IOException asIOException(Throwable t) {
+		if (t instanceof IOException)
+			return (IOException) t;
+		IOException e = new IOException("Evaluation failed : " + t);
+		e.initCause(t);
+		return e;
+	}
+
+	public void setFolds(int folds) {
+		this.folds = folds;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setSolver(SolverType solver) {
+		this.solver = solver;
+	}
+
+	public void setC(double c) {
+		this.c = c;
+	}
+
+	public void setBias(double bias) {
+		this.bias = bias;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<File> corpora = new ArrayList<File>();
+		List<WeightingMethod> methods = new ArrayList<WeightingMethod>();
+		ModelEvaluator evaluator = new ModelEvaluator();
+		for (int i = 0; i < args.length - 1; i += 2) {
+			if ("-corpus".equals(args[i]))
+				corpora.add(new File(args[i + 1]));
+			else if ("-weighting".equals(args[i])) {
+				String[] names = args[i + 1].split(",");
+				for (int j = 0; j < names.length; j++)
+					methods.add(WeightingMethod.methodFromString(names[j]));
+			} else if ("-folds".equals(args[i]))
+				evaluator.setFolds(Integer.parseInt(args[i + 1]));
+			else if ("-threads".equals(args[i]))
+				evaluator.setThreads(Integer.parseInt(args[i + 1]));
+			else if ("-solver".equals(args[i]))
+				evaluator.setSolver(SolverType.valueOf(args[i + 1]));
+			else if ("-C".equals(args[i]))
+				evaluator.setC(Double.parseDouble(args[i + 1]));
+			else if ("-bias".equals(args[i]))
+				evaluator.setBias(Double.parseDouble(args[i + 1]));
+			else if ("-seed".equals(args[i]))
+				evaluator.setSeed(Long.parseLong(args[i + 1]));
+		}
+		if (corpora.isEmpty()) {
+			System.err
+					.println("ModelEvaluator -corpus dir [-corpus dir2 ...] [-weighting tfidf,frequency,...] [-folds 5] [-threads n] [-solver L2R_LR] [-C 1] [-bias -1] [-seed 0]");
+			System.exit(-1);
+		}
+		if (methods.isEmpty())
+			methods.add(null);
+		Linear.disableDebugOutput();
+		for (int i = 0; i < corpora.size(); i++) {
+			for (int j = 0; j < methods.size(); j++) {
+				WeightingMethod method = methods.get(j);
+				System.out.println("Configuration : " + corpora.get(i)
+						+ (method != null ? " " + method : ""));
+				System.out.println(evaluator.evaluate(corpora.get(i), method)
+						.report());
+			}
+		}
+	}
+}
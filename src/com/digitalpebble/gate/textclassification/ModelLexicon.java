@@ -0,0 +1,147 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.digitalpebble.classification.Lexicon;
+
+/**
+ * Lexicon of a model written by the plugin, gives access to the type of
+ * classifier used with the model and allows new labels to be added to a
+ * lexicon loaded from a file as well as the document frequencies to be set.
+ **/
+class ModelLexicon extends Lexicon {
+
+	/** Version of the TextClassification API whose private fields are used **/
+	static final String API_VERSION = "1.6";
+
+	// Maven metadata of the API jar
+	private static final String API_PROPERTIES = "/META-INF/maven/com.digitalpebble.textclassification/textclassification/pom.properties";
+
+	private static final Map<String, Field> fields = new HashMap<String, Field>();
+
+	ModelLexicon(String file) throws IOException {
+		super(file);
+		// the labels read from the file are stored in a fixed size list
+		try {
+			Field field = field("labels");
+			List<?> labels = (List<?>) field.get(this);
+			if (labels != null)
+				field.set(this, new ArrayList<Object>(labels));
+		} catch (IllegalAccessException e) {
+			throw new IOException("Can't make the labels of " + file
+					+ " extensible : " + e);
+		}
+	}
+
+	/**
+	 * Returns a private field of {@link Lexicon}. This is the only place where
+	 * the internals of the lexicon are accessed; they are only known for the
+	 * version {@link #API_VERSION} of the TextClassification API, which is
+	 * checked before the first field is returned.
+	 **/
+	static synchronized Field field(String name) throws IOException {
+		Field field = fields.get(name);
+		if (field != null)
+			return field;
+		if (fields.isEmpty()) {
+			String version = apiVersion();
+			if (!API_VERSION.equals(version))
+				throw new IOException("The lexicon of the TextClassification API "
+						+ version + " is not supported, " + API_VERSION
+						+ " is expected");
+		}
+		try {
+			field = Lexicon.class.getDeclaredField(name);
+		} catch (NoSuchFieldException e) {
+			throw new IOException("No field " + name + " in the lexicon");
+		}
+		field.setAccessible(true);
+		fields.put(name, field);
+		return field;
+	}
+
+	/**
+	 * Whether the TextClassification API on the classpath is the version
+	 * whose private fields are known
+	 **/
+	static boolean isSupportedAPI() {
+		try {
+			return API_VERSION.equals(apiVersion());
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// version of the API on the classpath, null if unknown
+	private static String apiVersion() throws IOException {
+		InputStream in = Lexicon.class.getResourceAsStream(API_PROPERTIES);
+		if (in == null)
+			return null;
+		try {
+			Properties properties = new Properties();
+			properties.load(in);
+			return properties.getProperty("version");
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Sets the number of documents in which an existing term occurs **/
+	void setDocFreq(int index, int docFreq) throws IOException {
+		Integer key = Integer.valueOf(index);
+		Map<Integer, int[]> docFreqs = docFreqs();
+		int[] value = docFreqs.get(key);
+		if (value == null)
+			throw new IllegalArgumentException("Unknown term " + index);
+		value[0] = docFreq;
+	}
+
+	/** Sets the number of documents of the corpus **/
+	void setDocNum(int docNum) throws IOException {
+		try {
+			field("docNum").setInt(this, docNum);
+		} catch (IllegalAccessException e) {
+			throw new IOException("Can't set the number of documents : " + e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<Integer, int[]> docFreqs() throws IOException {
+		try {
+			return (Map<Integer, int[]>) field("index2docfreq").get(this);
+		} catch (IllegalAccessException e) {
+			throw new IOException("Can't access the document frequencies : "
+					+ e);
+		}
+	}
+
+	protected String getClassifierType() {
+		return super.getClassifierType();
+	}
+
+	protected void setClassifierType(String classifierType) {
+		super.setClassifierType(classifierType);
+	}
+}
@@ -0,0 +1,351 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.digitalpebble.classification.Document;
+import com.digitalpebble.classification.FileTrainingCorpus;
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.Parameters;
+import com.digitalpebble.classification.Vector;
+
+import de.bwaldvogel.liblinear.FeatureNode;
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Parameter;
+import de.bwaldvogel.liblinear.Problem;
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * Trains a liblinear model from the lexicon and raw file generated by the
+ * TrainingCorpusCreatorPR. The binary problems of the one-vs-rest
+ * decomposition are trained concurrently on a pool of threads sharing a
+ * single copy of the instances. The problems are built and solved exactly as
+ * in Linear.train() so that the weights are identical to those of the
+ * sequential training, which is why the solvers relying on liblinear's
+ * shared random generator are always trained one label after the other.
+ **/
+public class ModelTrainer {
+
+	private SolverType solver = SolverType.L2R_LR;
+
+	private double c = 1d;
+
+	// stopping criterion, the default of liblinear for the solver if negative
+	private double eps = -1d;
+
+	private double bias = -1d;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Builds the training problem from the documents of a raw file using the
+	 * weighting scheme of the lexicon
+	 **/
+	static Problem readProblem(File raw, Lexicon lexicon, double bias)
+			throws IOException {
+		List<FeatureNode[]> instances = new ArrayList<FeatureNode[]>();
+		List<Integer> labels = new ArrayList<Integer>();
+		int maxIndex = 0;
+		FileTrainingCorpus corpus = new FileTrainingCorpus(raw);
+		try {
+			Iterator<Document> docs = corpus.iterator();
+			while (docs.hasNext()) {
+				Document doc = docs.next();
+				Vector vector = doc.getFeatureVector(lexicon);
+				int[] indices = vector.getIndices();
+				double[] values = vector.getValues();
+				int length = bias >= 0 ? indices.length + 1 : indices.length;
+				FeatureNode[] nodes = new FeatureNode[length];
+				for (int i = 0; i < indices.length; i++)
+					nodes[i] = new FeatureNode(indices[i], values[i]);
+				if (indices.length > 0)
+					maxIndex = Math.max(maxIndex, indices[indices.length - 1]);
+				instances.add(nodes);
+				labels.add(Integer.valueOf(doc.getLabel()));
+			}
+		} finally {
+			corpus.close();
+		}
+		Problem problem = new Problem();
+		problem.l = instances.size();
+		problem.n = maxIndex;
+		problem.bias = bias;
+		problem.x = instances.toArray(new FeatureNode[problem.l][]);
+		problem.y = new int[problem.l];
+		for (int i = 0; i < problem.l; i++)
+			problem.y[i] = labels.get(i).intValue();
+		if (bias >= 0) {
+			problem.n++;
+			for (int i = 0; i < problem.l; i++)
+				problem.x[i][problem.x[i].length - 1] = new FeatureNode(
+						problem.n, bias);
+		}
+		return problem;
+	}
+
+	/** Trains a model on the problem with the parameters of this trainer **/
+	LinearModel train(Problem problem) throws IOException {
+		Parameter parameter = new Parameter(solver, c, eps >= 0 ? eps
+				: defaultEps(solver));
+
+		// groups the instances per label, in order of first appearance
+		List<Integer> labelList = new ArrayList<Integer>();
+		List<List<Integer>> members = new ArrayList<List<Integer>>();
+		for (int i = 0; i < problem.l; i++) {
+			Integer label = Integer.valueOf(problem.y[i]);
+			int pos = labelList.indexOf(label);
+			if (pos == -1) {
+				pos = labelList.size();
+				labelList.add(label);
+				members.add(new ArrayList<Integer>());
+			}
+			members.get(pos).add(Integer.valueOf(i));
+		}
+		int nrClass = labelList.size();
+		int[] labels = new int[nrClass];
+		int[] start = new int[nrClass];
+		FeatureNode[][] x = new FeatureNode[problem.l][];
+		int k = 0;
+		for (int i = 0; i < nrClass; i++) {
+			labels[i] = labelList.get(i).intValue();
+			start[i] = k;
+			Iterator<Integer> it = members.get(i).iterator();
+			while (it.hasNext())
+				x[k++] = problem.x[it.next().intValue()];
+		}
+
+		double[] weightedC = new double[nrClass];
+		for (int i = 0; i < nrClass; i++) {
+			weightedC[i] = parameter.getC();
+			for (int j = 0; j < parameter.getNumWeights(); j++)
+				if (parameter.getWeightLabels()[j] == labels[i])
+					weightedC[i] *= parameter.getWeights()[j];
+		}
+
+		int nrFeature = problem.bias >= 0 ? problem.n - 1 : problem.n;
+		String solverName = solver.name();
+		if (solver == SolverType.MCSVM_CS || nrClass <= 2) {
+			// a single problem : nothing to parallelize
+			Linear.resetRandom();
+			de.bwaldvogel.liblinear.Model model = Linear.train(problem,
+					parameter);
+			return new LinearModel(solverName, model.getLabels(), nrFeature,
+					problem.bias, model.getFeatureWeights());
+		}
+
+		List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+		for (int i = 0; i < nrClass; i++) {
+			int end = i + 1 < nrClass ? start[i + 1] : problem.l;
+			tasks.add(new BinaryTask(x, problem.n, problem.bias, start[i],
+					end, parameter, weightedC[i]));
+		}
+		List<double[]> columns = new ArrayList<double[]>(nrClass);
+		Linear.resetRandom();
+		if (isDeterministic(solver) && threads > 1) {
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(
+					threads, nrClass));
+			try {
+				List<Future<double[]>> results = pool.invokeAll(tasks);
+				for (int i = 0; i < nrClass; i++)
+					columns.add(results.get(i).get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Training interrupted");
+			} catch (ExecutionException e) {
+				throw asIOException(e.getCause());
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			for (int i = 0; i < nrClass; i++) {
+				try {
+					columns.add(tasks.get(i).call());
+				} catch (Exception e) {
+					throw asIOException(e);
+				}
+			}
+		}
+
+		// liblinear's layout : the weights of a feature are contiguous
+		double[] weights = new double[problem.n * nrClass];
+		for (int i = 0; i < nrClass; i++) {
+			double[] column = columns.get(i);
+			for (int j = 0; j < problem.n; j++)
+				weights[j * nrClass + i] = column[j];
+		}
+		return new LinearModel(solverName, labels, nrFeature, problem.bias,
+				weights);
+	}
+
+	/**
+	 * Trains the binary problem of one label against the others. The
+	 * instances are only read by the solvers so they are shared between the
+	 * tasks.
+	 **/
+	private static class BinaryTask implements Callable<double[]> {
+
+		private final Problem problem;
+
+		private final Parameter parameter;
+
+		private final double cp;
+
+		BinaryTask(FeatureNode[][] x, int n, double bias, int start, int end,
+				Parameter parameter, double cp) {
+			problem = new Problem();
+			problem.l = x.length;
+			problem.n = n;
+			problem.bias = bias;
+			problem.x = x;
+			problem.y = new int[x.length];
+			for (int i = 0; i < x.length; i++)
+				problem.y[i] = i >= start && i < end ? 1 : -1;
+			this.parameter = parameter;
+			this.cp = cp;
+		}
+
+		public double[] call() throws Exception {
+			double[] w = new double[problem.n];
+			trainOne().invoke(null, problem, parameter, w, Double.valueOf(cp),
+					Double.valueOf(parameter.getC()));
+			return w;
+		}
+	}
+
+	private static Method trainOne;
+
+	// the solver for a binary problem is not exposed by liblinear
+	private static synchronized Method trainOne() throws NoSuchMethodException {
+		if (trainOne == null) {
+			trainOne = Linear.class.getDeclaredMethod("train_one",
+					Problem.class, Parameter.class, double[].class,
+					double.class, double.class);
+			trainOne.setAccessible(true);
+		}
+		return trainOne;
+	}
+
+	private static IOException asIOException(Throwable t) {
+		if (t instanceof InvocationTargetException)
+			t = ((InvocationTargetException) t).getTargetException();
+		if (t instanceof IOException)
+			return (IOException) t;
+		IOException e = new IOException("Training failed : " + t);
+		e.initCause(t);
+		return e;
+	}
+
+	// the trust region solvers do not use the random generator of liblinear
+	static boolean isDeterministic(SolverType solver) {
+		return solver == SolverType.L2R_LR
+				|| solver == SolverType.L2R_L2LOSS_SVC;
+	}
+
+	// same defaults as liblinear's train command
+	private static double defaultEps(SolverType solver) {
+		if (solver == SolverType.L2R_LR || solver == SolverType.L2R_L2LOSS_SVC)
+			return 0.01;
+		if (solver == SolverType.L1R_L2LOSS_SVC || solver == SolverType.L1R_LR)
+			return 0.01;
+		return 0.1;
+	}
+
+	/**
+	 * Trains a model from the corpus found in corpusDir and saves it with its
+	 * lexicon in outputDir
+	 **/
+	public void train(File corpusDir, File outputDir) throws IOException {
+		ModelLexicon lexicon = new ModelLexicon(new File(corpusDir,
+				Parameters.lexiconName).getPath());
+		long start = System.currentTimeMillis();
+		Problem problem = readProblem(new File(corpusDir, Parameters.rawName),
+				lexicon, bias);
+		System.out.println(problem.l + " documents and " + problem.n
+				+ " features read in " + (System.currentTimeMillis() - start)
+				+ " msec");
+		start = System.currentTimeMillis();
+		LinearModel model = train(problem);
+		System.out.println("Model trained in "
+				+ (System.currentTimeMillis() - start) + " msec");
+		outputDir.mkdirs();
+		lexicon.setClassifierType(LinearModel.CLASSIFIER_TYPE);
+		lexicon.saveToFile(new File(outputDir, Parameters.lexiconName)
+				.getPath());
+		model.save(new File(outputDir, Parameters.modelName));
+	}
+
+	public void setSolver(SolverType solver) {
+		this.solver = solver;
+	}
+
+	public void setC(double c) {
+		this.c = c;
+	}
+
+	public void setEps(double eps) {
+		this.eps = eps;
+	}
+
+	public void setBias(double bias) {
+		this.bias = bias;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File corpusDir = null;
+		File outputDir = null;
+		ModelTrainer trainer = new ModelTrainer();
+		for (int i = 0; i < args.length - 1; i += 2) {
+			if ("-corpus".equals(args[i]))
+				corpusDir = new File(args[i + 1]);
+			else if ("-output".equals(args[i]))
+				outputDir = new File(args[i + 1]);
+			else if ("-solver".equals(args[i]))
+				trainer.setSolver(SolverType.valueOf(args[i + 1]));
+			else if ("-C".equals(args[i]))
+				trainer.setC(Double.parseDouble(args[i + 1]));
+			else if ("-eps".equals(args[i]))
+				trainer.setEps(Double.parseDouble(args[i + 1]));
+			else if ("-bias".equals(args[i]))
+				trainer.setBias(Double.parseDouble(args[i + 1]));
+			else if ("-threads".equals(args[i]))
+				trainer.setThreads(Integer.parseInt(args[i + 1]));
+		}
+		if (corpusDir == null) {
+			System.err
+					.println("ModelTrainer -corpus dir [-output dir] [-solver L2R_LR] [-C 1] [-eps e] [-bias -1] [-threads n]");
+			System.exit(-1);
+		}
+		if (outputDir == null)
+			outputDir = corpusDir;
+		trainer.train(corpusDir, outputDir);
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.digitalpebble.classification.Parameters;
+
+/**
+ * Models updated incrementally are written in sub-directories of a model
+ * directory named v1, v2 etc... so that the previous versions are kept. The
+ * classifiers load the latest version found in the directory or the directory
+ * itself if it has no versions.
+ **/
+final class ModelVersions {
+
+	private static final String PREFIX = "v";
+
+	private ModelVersions() {
+	}
+
+	/**
+	 * Returns the latest version in a directory or the directory itself if it
+	 * does not contain any
+	 **/
+	static File latest(File dir) {
+		File latest = dir;
+		int max = -1;
+		File[] children = dir.listFiles();
+		if (children == null)
+			return dir;
+		for (int i = 0; i < children.length; i++) {
+			int version = version(children[i]);
+			if (version > max
+					&& new File(children[i], Parameters.lexiconName).exists()) {
+				max = version;
+				latest = children[i];
+			}
+		}
+		return latest;
+	}
+
+	/** Creates the directory for the next version in a directory **/
+	static File next(File dir) throws IOException {
+		int max = 0;
+		File[] children = dir.listFiles();
+		if (children != null)
+			for (int i = 0; i < children.length; i++)
+				max = Math.max(max, version(children[i]));
+		File next = new File(dir, PREFIX + (max + 1));
+		if (!next.mkdirs())
+			throw new IOException("Could not create " + next);
+		return next;
+	}
+
+	// version number of a directory or -1 if it is not a version
+	private static int version(File file) {
+		String name = file.getName();
+		if (!file.isDirectory() || !name.startsWith(PREFIX)
+				|| name.length() == PREFIX.length())
+			return -1;
+		for (int i = PREFIX.length(); i < name.length(); i++)
+			if (!Character.isDigit(name.charAt(i)))
+				return -1;
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -23,7 +23,13 @@ import gate.Node;
 import gate.ProcessingResource;
 import gate.creole.AbstractLanguageAnalyser;
 import gate.creole.ExecutionException;
+import gate.util.InvalidOffsetException;
 import gate.util.OffsetComparator;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -33,10 +39,27 @@ import java.util.List;
 // situations where different annotations are overlapping e.g POS + form + other semantic information
 // limit computation of N-Grams to a given span, e.g. sentence
 
-// TODO specify scope :e.g. all bi-grams appearing within a range of 5 tokens
+// the scope can be extended with the window parameter e.g. all bi-grams 
+// appearing within a range of 5 tokens (i.e. skip-grams)
 
 public class NGram extends AbstractLanguageAnalyser implements
 		ProcessingResource {
+
+	/** One annotation per n-gram occurrence **/
+	public static final String ANNOTATION_OUTPUT = "annotation";
+
+	/**
+	 * One annotation per span (or for the whole document if there are no
+	 * spans) whose features map each n-gram to its number of occurrences
+	 **/
+	public static final String SPAN_OUTPUT = "span";
+
+	/**
+	 * The n-gram counts of the whole document are stored as a document feature
+	 * named after the outputAnnotationType
+	 **/
+	public static final String DOCUMENT_OUTPUT = "document";
+
 	private String inputAnnotationSet;
 	private String outputAnnotationSet;
 	private String inputAnnotationType;
@@ -46,11 +69,75 @@ public class NGram extends AbstractLanguageAnalyser implements
 	private Integer ngram;
 	private Boolean generateIntermediateAnnotations;
 	private Integer window;
+	/**
+	 * Maximum number of combinations built for a given position when using a
+	 * window, -1 for no limit
+	 **/
+	private Integer maxCombinations = -1;
 	private String spanAnnotationType;
 	private String ngramSeparator = "_";
+	private String outputMode = ANNOTATION_OUTPUT;
+	/**
+	 * Skip n-grams which have already been generated with the same offsets e.g.
+	 * from overlapping annotations with the same value
+	 **/
+	private Boolean deduplicate = Boolean.FALSE;
+	/**
+	 * Directory of a model whose lexicon restricts the n-grams generated to
+	 * the ones the model knows about, null to generate all of them
+	 **/
+	private URL modelDir;
+
+	// terms of the model and the lexicon file, its date and the separator
+	// they were loaded for
+	private LexiconFilter filter;
+	private String filterSource;
+
+	/** File where the processing of the documents is traced, none if null **/
+	private URL tracePath;
+	/** Ratio of the documents traced **/
+	private Double traceSampleRate = 1d;
+	private TraceRecorder tracer;
+	private long documentsSeen;
+	// numbers of boxes and n-grams generated for the current document
+	private int boxesBuilt;
+	private int ngramsEmitted;
+
+	// n-gram counts for the current span or document, null when writing
+	// one annotation per occurrence
+	private TermCounter counts;
+
+	// offsets and values of the n-grams already generated in the document
+	private OffsetTermSet generated = new OffsetTermSet();
 
 	public void execute() throws ExecutionException {
 
+		if (!ANNOTATION_OUTPUT.equals(outputMode)
+				&& !SPAN_OUTPUT.equals(outputMode)
+				&& !DOCUMENT_OUTPUT.equals(outputMode))
+			throw new ExecutionException("Unknown outputMode " + outputMode);
+		counts = ANNOTATION_OUTPUT.equals(outputMode) ? null
+				: new TermCounter();
+		generated.clear();
+		filter = loadFilter();
+		TraceRecorder trace = startTrace();
+		try {
+			generate(trace);
+		} finally {
+			// the events of the document reach the file even if it failed
+			if (trace != null)
+				trace.flush();
+		}
+	}
+
+	// generates the n-grams of the current document
+	private void generate(TraceRecorder trace) throws ExecutionException {
+		long documentStart = trace != null ? trace.now() : 0l;
+		int numSpans = 0;
+		int numTokens = 0;
+		boxesBuilt = 0;
+		ngramsEmitted = 0;
+
 		// get all the annotations we need from the input AS
 		AnnotationSet inputAS = inputAnnotationSet == null
 				|| inputAnnotationSet.trim().length() == 0 ? document
@@ -67,17 +154,23 @@ public class NGram extends AbstractLanguageAnalyser implements
 			List<Annotation> list = new ArrayList<Annotation>();
 			list.addAll(inputs);
 			Collections.sort(list, new OffsetComparator());
+			numTokens += list.size();
 			// use window or normal
 			if (window == -1)
 				generateNGrams(list, outputAS);
 			else
 				generateNGramsOverWindow(list, outputAS);
+			if (SPAN_OUTPUT.equals(outputMode))
+				storeCounts(outputAS, 0l, document.getContent().size());
 		} else {
 			// use the spans
 			AnnotationSet spans = inputAS.get(getSpanAnnotationType());
 			Iterator spaniter = spans.iterator();
 			while (spaniter.hasNext()) {
 				Annotation span = (Annotation) spaniter.next();
+				long spanStart = trace != null ? trace.now() : 0l;
+				int boxes = boxesBuilt;
+				int ngrams = ngramsEmitted;
 				AnnotationSet inputs = inputAS.get(inputAnnotationType, span
 						.getStartNode().getOffset(), span.getEndNode()
 						.getOffset());
@@ -88,8 +181,131 @@ public class NGram extends AbstractLanguageAnalyser implements
 					generateNGrams(list, outputAS);
 				else
 					generateNGramsOverWindow(list, outputAS);
+				if (SPAN_OUTPUT.equals(outputMode))
+					storeCounts(outputAS, span.getStartNode().getOffset(),
+							span.getEndNode().getOffset());
+				numSpans++;
+				numTokens += list.size();
+				if (trace != null)
+					trace.complete("span", "NGram", spanStart, "tokens",
+							Integer.valueOf(list.size()), "boxes", Integer
+									.valueOf(boxesBuilt - boxes), "ngrams",
+							Integer.valueOf(ngramsEmitted - ngrams));
 			}
 		}
+		if (DOCUMENT_OUTPUT.equals(outputMode)) {
+			document.getFeatures().put(outputAnnotationType, countsAsFeatures());
+		}
+		counts = null;
+		if (trace != null)
+			trace.complete("NGram", "NGram", documentStart, "document",
+					document.getName(), "spans", Integer.valueOf(numSpans),
+					"tokens", Integer.valueOf(numTokens), "boxes", Integer
+							.valueOf(boxesBuilt), "ngrams", Integer
+							.valueOf(ngramsEmitted));
+	}
+
+	// recorder for the current document, null if it is not traced
+	private TraceRecorder startTrace() throws ExecutionException {
+		try {
+			tracer = TraceRecorder.update(tracer, tracePath);
+		} catch (IOException e) {
+			throw new ExecutionException(e);
+		}
+		if (tracer == null
+				|| !TraceRecorder.sample(documentsSeen++, traceSampleRate))
+			return null;
+		return tracer;
+	}
+
+	public void cleanup() {
+		TraceRecorder.release(tracer);
+		tracer = null;
+		super.cleanup();
+	}
+
+	// reads the lexicon of the latest version of the model unless it has
+	// already been loaded from the same file, unchanged, and for the same
+	// separator
+	private LexiconFilter loadFilter() throws ExecutionException {
+		if (modelDir == null) {
+			filterSource = null;
+			return null;
+		}
+		if (!"file".equals(modelDir.getProtocol()))
+			throw new ExecutionException("modelDir must be a file: URL");
+		File lexicon = LexiconFilter.lexiconFile(new File(URI.create(modelDir
+				.toExternalForm())));
+		String source = lexicon.getPath() + '\n' + lexicon.lastModified()
+				+ '\n' + getNgramSeparator();
+		if (filter != null && source.equals(filterSource))
+			return filter;
+		try {
+			LexiconFilter loaded = LexiconFilter.load(lexicon,
+					getNgramSeparator());
+			filterSource = source;
+			return loaded;
+		} catch (Exception e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	// hash of an n-gram extended with a new value, only needed with a model
+	private long hash(Combination previous, String value) {
+		if (filter == null)
+			return 0l;
+		if (previous == null)
+			return LexiconFilter.hash(value);
+		return filter.combine(previous.hash, value);
+	}
+
+	// whether the n-gram can be output i.e. is known to the model if any
+	private boolean isTerm(long hash) {
+		return filter == null || filter.isTerm(hash);
+	}
+
+	// whether the n-gram is the beginning of a longer n-gram of the model
+	private boolean isPrefix(long hash) {
+		return filter == null || filter.isPrefix(hash);
+	}
+
+	// sends an n-gram to the output : either a new annotation or an increment
+	// of its count
+	private void output(AnnotationSet outputAS, Long start, Long end,
+			String ngram) throws InvalidOffsetException {
+		if (this.deduplicate.booleanValue()
+				&& !generated.add(start.longValue(), end.longValue(), ngram))
+			return;
+		ngramsEmitted++;
+		if (counts != null) {
+			counts.increment(ngram);
+			return;
+		}
+		FeatureMap fm = Factory.newFeatureMap();
+		fm.put(this.outputAnnotationFeature, ngram);
+		outputAS.add(start, end, outputAnnotationType, fm);
+	}
+
+	// creates an annotation with the counts of the current span and resets them
+	private void storeCounts(AnnotationSet outputAS, Long start, Long end)
+			throws ExecutionException {
+		if (counts.isEmpty())
+			return;
+		try {
+			outputAS.add(start, end, outputAnnotationType, countsAsFeatures());
+		} catch (InvalidOffsetException e) {
+			throw new ExecutionException(e);
+		}
+		counts.clear();
+	}
+
+	private FeatureMap countsAsFeatures() {
+		FeatureMap fm = Factory.newFeatureMap();
+		for (int i = 0; i < counts.size(); i++) {
+			int slot = counts.slotAt(i);
+			fm.put(counts.keyAt(slot), Integer.valueOf(counts.countAt(slot)));
+		}
+		return fm;
 	}
 
 	// we want to take into account overlapping annotations so we create 'boxes'
@@ -118,6 +334,7 @@ public class NGram extends AbstractLanguageAnalyser implements
 		}
 		if (currentList != null)
 			boxes.add(currentList);
+		boxesBuilt += boxes.size();
 		return boxes;
 	}
 
@@ -128,7 +345,7 @@ public class NGram extends AbstractLanguageAnalyser implements
 		try {
 			// now do the actual n-grams
 			for (int b = 0; b < boxes.size(); b++) {
-				List<String> tempAnnotationsStartingHere = new ArrayList<String>();
+				List<Combination> tempAnnotationsStartingHere = new ArrayList<Combination>();
 				Long loStart = null;
 				Long hiEnd = null;
 				for (int z = 0; z < this.ngram.intValue()
@@ -136,7 +353,7 @@ public class NGram extends AbstractLanguageAnalyser implements
 					// do the combination and dump what we've done at every step
 					// e.g generate 1 grams as well as 2-grams
 					List<Annotation> current = boxes.get(b + z);
-					List<String> temptemp = new ArrayList<String>();
+					List<Combination> temptemp = new ArrayList<Combination>();
 					for (Annotation newAnn : current) {
 						// remembering positions
 						if (loStart == null)
@@ -150,33 +367,43 @@ public class NGram extends AbstractLanguageAnalyser implements
 						String newString = (String) newAnn.getFeatures().get(
 								inputAnnotationFeature);
 						// TODO : what if there is no such value????
-						if (tempAnnotationsStartingHere.size() == 0) {
+						if (z == 0) {
+							long hash = hash(null, newString);
 							// create an annotation for the current annotation
-							if (this.generateIntermediateAnnotations) {
-								FeatureMap fm = Factory.newFeatureMap();
-								fm.put(this.outputAnnotationFeature, newString);
-								outputAS.add(loStart, hiEnd,
-										outputAnnotationType, fm);
+							if (this.generateIntermediateAnnotations
+									&& isTerm(hash)) {
+								output(outputAS, loStart, hiEnd, newString);
 							}
 							// add it to the temp
-							temptemp.add(newString);
+							if (isPrefix(hash))
+								temptemp.add(new Combination(newString, 0l, 1,
+										hash));
 						} else
-							for (String existing : tempAnnotationsStartingHere) {
-								String combination = existing + getNgramSeparator() + newString;
-								temptemp.add(combination);
-
-								if (this.generateIntermediateAnnotations
-										| z == this.ngram.intValue() - 1) {
+							for (Combination existing : tempAnnotationsStartingHere) {
+								long hash = hash(existing, newString);
+								boolean term = isTerm(hash);
+								boolean prefix = isPrefix(hash);
+								if (!term && !prefix)
+									continue;
+								String combination = existing.value
+										+ getNgramSeparator() + newString;
+								if (prefix)
+									temptemp.add(new Combination(combination,
+											0l, z + 1, hash));
+
+								if ((this.generateIntermediateAnnotations | z == this.ngram
+										.intValue() - 1)
+										&& term) {
 									// create an annotation for the combination
-									FeatureMap fm = Factory.newFeatureMap();
-									fm.put(this.outputAnnotationFeature,
+									output(outputAS, loStart, hiEnd,
 											combination);
-									outputAS.add(loStart, hiEnd,
-											outputAnnotationType, fm);
 								}
 							}
 					}
 					tempAnnotationsStartingHere = temptemp;
+					// nothing left to extend
+					if (temptemp.isEmpty())
+						break;
 				}
 			}
 		} catch (Exception e) {
@@ -184,68 +411,78 @@ public class NGram extends AbstractLanguageAnalyser implements
 		}
 	}
 
-	// generate annotations for ngrams over a larger span e.g all couples inside
-	// a span of 5 tokens
-	// this allows to match more variants e.g. with adjectives in the middle
-	// we do not generate intermediate annotations here
-	// do with only bigrams for the moment
+	// generate n-grams over a larger span e.g all couples inside a span of 5
+	// tokens. This allows to match more variants e.g. with adjectives in the
+	// middle. The n-grams starting at a given position are built from the
+	// ones found at the previous positions of the window so that each
+	// combination is created only once and the ones ending closer to the
+	// head are generated first. The number of combinations built for a given
+	// position is bounded by maxCombinations.
+	// Intermediate n-grams (i.e. shorter than ngram) are output only if
+	// generateIntermediateAnnotations is true.
 	private void generateNGramsOverWindow(List<Annotation> list,
 			AnnotationSet outputAS) throws ExecutionException {
 		List<List> boxes = generateBoxes(list, outputAS);
+		int n = this.ngram.intValue();
+		int limit = maxCombinations == null || maxCombinations.intValue() <= 0 ? Integer.MAX_VALUE
+				: maxCombinations.intValue();
+		List<Combination> partial = new ArrayList<Combination>();
 		try {
 			for (int b = 0; b < boxes.size(); b++) {
-				List<String> tempAnnotationsStartingHere = new ArrayList<String>();
+				partial.clear();
+				int left = limit;
 				Long loStart = null;
-				Long hiEnd = null;
 
-				// create a temporary list containing all the annotations
-				// at position 0
+				// start with the annotations at position 0
 				List<Annotation> headannots = boxes.get(b);
-				for (Annotation newAnn : headannots) {
-					// remembering positions
+				for (int h = 0; h < headannots.size() && left > 0; h++) {
+					Annotation newAnn = headannots.get(h);
 					loStart = newAnn.getStartNode().getOffset();
-					if (hiEnd == null)
-						hiEnd = newAnn.getEndNode().getOffset();
-					else if (newAnn.getEndNode().getOffset().longValue() > hiEnd
-							.longValue())
-						hiEnd = newAnn.getEndNode().getOffset();
-
 					String string = (String) newAnn.getFeatures().get(
 							inputAnnotationFeature);
-					tempAnnotationsStartingHere.add(string);
-					
-					if (this.generateIntermediateAnnotations) {
-						FeatureMap fm = Factory.newFeatureMap();
-						fm.put(this.outputAnnotationFeature, string);
-						outputAS.add(loStart, hiEnd,
-								outputAnnotationType, fm);
+					long end = newAnn.getEndNode().getOffset().longValue();
+					long hash = hash(null, string);
+					left--;
+					if ((n == 1 || this.generateIntermediateAnnotations)
+							&& isTerm(hash)) {
+						output(outputAS, loStart, end, string);
 					}
+					if (n > 1 && isPrefix(hash))
+						partial.add(new Combination(string, end, 1, hash));
 				}
 
-				for (int z = 1; z < window && (b + z < boxes.size()); z++) {
-					// generate all possible bi-grams
+				for (int z = 1; z < window && (b + z < boxes.size())
+						&& left > 0 && !partial.isEmpty(); z++) {
+					// extend the combinations found so far with the
+					// annotations at this position
+					int existing = partial.size();
 					List<Annotation> current = boxes.get(b + z);
-					for (Annotation newAnn : current) {
-						// remembering positions
-						if (hiEnd == null)
-							hiEnd = newAnn.getEndNode().getOffset();
-						else if (newAnn.getEndNode().getOffset().longValue() > hiEnd
-								.longValue())
-							hiEnd = newAnn.getEndNode().getOffset();
-
+					for (int c = 0; c < current.size() && left > 0; c++) {
+						Annotation newAnn = current.get(c);
 						String newString = (String) newAnn.getFeatures().get(
 								inputAnnotationFeature);
-
-						// take what is in the buffer
-						// and make a new annotation out of that
-						for (String s : tempAnnotationsStartingHere) {
-							String combination = s + getNgramSeparator() + newString;
-
-							// create an annotation for the combination
-							FeatureMap fm = Factory.newFeatureMap();
-							fm.put(this.outputAnnotationFeature, combination);
-							outputAS.add(loStart, hiEnd, outputAnnotationType,
-									fm);
+						long newEnd = newAnn.getEndNode().getOffset()
+								.longValue();
+						for (int i = 0; i < existing && left > 0; i++) {
+							Combination previous = partial.get(i);
+							long hash = hash(previous, newString);
+							boolean term = isTerm(hash);
+							boolean prefix = isPrefix(hash);
+							// not counted in maxCombinations as it is not built
+							if (!term && !prefix)
+								continue;
+							String combination = previous.value
+									+ getNgramSeparator() + newString;
+							long end = Math.max(previous.end, newEnd);
+							int length = previous.length + 1;
+							left--;
+							if ((length == n || this.generateIntermediateAnnotations)
+									&& term) {
+								output(outputAS, loStart, end, combination);
+							}
+							if (length < n && prefix)
+								partial.add(new Combination(combination, end,
+										length, hash));
 						}
 					}
 				}
@@ -255,6 +492,21 @@ public class NGram extends AbstractLanguageAnalyser implements
 		}
 	}
 
+	// n-gram being built, the hash is only set when using a model
+	private static class Combination {
+		final String value;
+		final long end;
+		final int length;
+		final long hash;
+
+		Combination(String value, long end, int length, long hash) {
+			this.value = value;
+			this.end = end;
+			this.length = length;
+			this.hash = hash;
+		}
+	}
+
 	public String getInputAnnotationFeature() {
 		return inputAnnotationFeature;
 	}
@@ -343,4 +595,52 @@ public class NGram extends AbstractLanguageAnalyser implements
 	public void setNgramSeparator(String ngramSeparator) {
 		this.ngramSeparator = ngramSeparator;
 	}
+
+	public Integer getMaxCombinations() {
+		return maxCombinations;
+	}
+
+	public void setMaxCombinations(Integer maxCombinations) {
+		this.maxCombinations = maxCombinations;
+	}
+
+	public String getOutputMode() {
+		return outputMode;
+	}
+
+	public void setOutputMode(String outputMode) {
+		this.outputMode = outputMode;
+	}
+
+	public Boolean getDeduplicate() {
+		return deduplicate;
+	}
+
+	public void setDeduplicate(Boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	public URL getTracePath() {
+		return tracePath;
+	}
+
+	public void setTracePath(URL tracePath) {
+		this.tracePath = tracePath;
+	}
+
+	public Double getTraceSampleRate() {
+		return traceSampleRate;
+	}
+
+	public void setTraceSampleRate(Double traceSampleRate) {
+		this.traceSampleRate = traceSampleRate;
+	}
+
+	public URL getModelDir() {
+		return modelDir;
+	}
+
+	public void setModelDir(URL modelDir) {
+		this.modelDir = modelDir;
+	}
 }
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+/**
+ * Open addressing set of (start, end, term) triples used to skip the n-grams
+ * already generated at the same offsets. The offsets are kept as primitives
+ * and the terms by reference so that no key object is created per n-gram.
+ * Like {@link TermCounter} the slots in use are remembered so that clearing
+ * the set only costs the number of triples it holds.
+ **/
+final class OffsetTermSet {
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private long[] starts;
+
+	private long[] ends;
+
+	private String[] terms;
+
+	// slots holding a triple, in the order they were filled
+	private int[] used;
+
+	private int size;
+
+	OffsetTermSet() {
+		starts = new long[DEFAULT_CAPACITY];
+		ends = new long[DEFAULT_CAPACITY];
+		terms = new String[DEFAULT_CAPACITY];
+		used = new int[DEFAULT_CAPACITY / 2 + 1];
+	}
+
+	/** Adds the triple and returns false if it was already in the set **/
+	boolean add(long start, long end, String term) {
+		int mask = terms.length - 1;
+		int slot = hash(start, end, term) & mask;
+		while (terms[slot] != null) {
+			if (starts[slot] == start && ends[slot] == end
+					&& terms[slot].equals(term))
+				return false;
+			slot = (slot + 1) & mask;
+		}
+		starts[slot] = start;
+		ends[slot] = end;
+		terms[slot] = term;
+		used[size++] = slot;
+		if (size * 2 > terms.length)
+			rehash(terms.length << 1);
+		return true;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		for (int i = 0; i < size; i++)
+			terms[used[i]] = null;
+		size = 0;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldStarts = starts;
+		long[] oldEnds = ends;
+		String[] oldTerms = terms;
+		int[] oldUsed = used;
+		starts = new long[capacity];
+		ends = new long[capacity];
+		terms = new String[capacity];
+		used = new int[capacity / 2 + 1];
+		int mask = capacity - 1;
+		for (int i = 0; i < size; i++) {
+			int old = oldUsed[i];
+			int slot = hash(oldStarts[old], oldEnds[old], oldTerms[old])
+					& mask;
+			while (terms[slot] != null)
+				slot = (slot + 1) & mask;
+			starts[slot] = oldStarts[old];
+			ends[slot] = oldEnds[old];
+			terms[slot] = oldTerms[old];
+			used[i] = slot;
+		}
+	}
+
+	// combines the offsets with the cached hash code of the term
+	private static int hash(long start, long end, String term) {
+		long h = start * 0x9E3779B97F4A7C15L + end;
+		h = h * 0x9E3779B97F4A7C15L + term.hashCode();
+		h ^= h >>> 32;
+		int i = (int) h * 0x9E3779B9;
+		return i ^ (i >>> 16);
+	}
+}
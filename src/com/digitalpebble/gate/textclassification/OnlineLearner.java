@@ -0,0 +1,300 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.digitalpebble.classification.Document;
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.Parameters;
+import com.digitalpebble.classification.SimpleDocument;
+import com.digitalpebble.classification.Vector;
+
+/**
+ * Updates an existing model with a training corpus generated by the
+ * TrainingCorpusCreatorPR instead of retraining it from scratch. The terms and
+ * labels of the corpus which are unknown to the model are added to its lexicon
+ * and the weights are updated by stochastic gradient descent on the logistic
+ * loss of each label against the others, one mini-batch of documents at a
+ * time. The result is saved as a new version of the model (see
+ * {@link ModelVersions}) which the classifier PRs load by default.
+ **/
+public class OnlineLearner {
+
+	private int batchSize = 100;
+
+	private int epochs = 1;
+
+	private double learningRate = 0.1;
+
+	private double regularization = 1e-6;
+
+	// the weights of the model are stored divided by this factor
+	// so that the regularization does not need to update all of them
+	private double scale;
+
+	// number of batches processed so far
+	private int updates;
+
+	/**
+	 * Updates the latest version of the model found in modelDir with the raw
+	 * corpus and lexicon in corpusDir, the new version is written in outputDir.
+	 *
+	 * @return the directory of the new version
+	 **/
+	public File update(File modelDir, File corpusDir, File outputDir)
+			throws IOException {
+		File current = ModelVersions.latest(modelDir);
+		ModelLexicon lexicon = new ModelLexicon(new File(current,
+				Parameters.lexiconName).getPath());
+		File modelFile = new File(current, Parameters.modelName);
+		LinearModel model = modelFile.exists() ? LinearModel.load(modelFile)
+				: new LinearModel(LinearModel.DEFAULT_SOLVER, -1);
+
+		// extends the lexicon of the model with the one of the corpus
+		Lexicon corpusLexicon = new Lexicon(new File(corpusDir,
+				Parameters.lexiconName).getPath());
+		int[] termMap = mapTerms(corpusLexicon, lexicon);
+		String[] corpusLabels = corpusLexicon.getLabels();
+		int[] labelMap = new int[corpusLabels.length];
+		for (int i = 0; i < corpusLabels.length; i++) {
+			labelMap[i] = lexicon.getLabelIndex(corpusLabels[i]);
+			model.addLabel(labelMap[i]);
+		}
+		lexicon.setDocNum(lexicon.getDocNum() + corpusLexicon.getDocNum());
+		for (int i = 0; i < termMap.length; i++)
+			model.growFeatures(termMap[i]);
+
+		scale = 1d;
+		updates = 0;
+		File raw = new File(corpusDir, Parameters.rawName);
+		for (int epoch = 0; epoch < epochs; epoch++) {
+			int[] stats = train(raw, termMap, labelMap, lexicon, model);
+			System.out.println("Epoch " + (epoch + 1) + " : " + stats[0]
+					+ " documents, " + stats[1]
+					+ " misclassified before their update");
+		}
+		model.scale(scale);
+
+		File version = ModelVersions.next(outputDir);
+		lexicon.setClassifierType(LinearModel.CLASSIFIER_TYPE);
+		lexicon.saveToFile(new File(version, Parameters.lexiconName).getPath());
+		model.save(new File(version, Parameters.modelName));
+		return version;
+	}
+
+	// maps the term indices of the corpus onto the lexicon of the model,
+	// adding the missing terms and the document frequencies of the corpus
+	private int[] mapTerms(Lexicon corpusLexicon, ModelLexicon lexicon)
+			throws IOException {
+		Map<Integer, String> terms = corpusLexicon.getInvertedIndex();
+		int max = 0;
+		Iterator<Integer> indices = terms.keySet().iterator();
+		while (indices.hasNext())
+			max = Math.max(max, indices.next().intValue());
+		int[] termMap = new int[max + 1];
+		Arrays.fill(termMap, -1);
+		int added = 0;
+		Iterator<Entry<Integer, String>> entries = terms.entrySet().iterator();
+		while (entries.hasNext()) {
+			Entry<Integer, String> entry = entries.next();
+			int index = entry.getKey().intValue();
+			int docFreq = corpusLexicon.getDocFreq(index);
+			if (docFreq <= 0)
+				continue;
+			int target = lexicon.getIndex(entry.getValue());
+			if (target == -1) {
+				target = lexicon.createIndex(entry.getValue());
+				lexicon.setDocFreq(target, docFreq);
+				added++;
+			} else
+				lexicon.setDocFreq(target, lexicon.getDocFreq(target)
+						+ docFreq);
+			termMap[index] = target;
+		}
+		System.out.println(added + " new terms added to the lexicon");
+		return termMap;
+	}
+
+	// one pass on the raw corpus, returns the number of documents used and
+	// the number of them which were misclassified before being learnt
+	private int[] train(File raw, int[] termMap, int[] labelMap,
+			Lexicon lexicon, LinearModel model) throws IOException {
+		int[][] batchIndices = new int[batchSize][];
+		double[][] batchValues = new double[batchSize][];
+		int[] batchLabels = new int[batchSize];
+		int inBatch = 0;
+		int[] stats = new int[2];
+		BufferedReader reader = new BufferedReader(new FileReader(raw));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Document doc = remap(line, termMap, labelMap);
+				if (doc == null)
+					continue;
+				Vector vector = doc.getFeatureVector(lexicon);
+				if (vector.getIndices().length == 0)
+					continue;
+				batchIndices[inBatch] = vector.getIndices();
+				batchValues[inBatch] = vector.getValues();
+				batchLabels[inBatch] = doc.getLabel();
+				inBatch++;
+				if (inBatch == batchSize) {
+					stats[1] += update(model, batchIndices, batchValues,
+							batchLabels, inBatch);
+					stats[0] += inBatch;
+					inBatch = 0;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		if (inBatch > 0) {
+			stats[1] += update(model, batchIndices, batchValues, batchLabels,
+					inBatch);
+			stats[0] += inBatch;
+		}
+		return stats;
+	}
+
+	// converts a line of the raw corpus into a document using the indices of
+	// the model
+	private Document remap(String line, int[] termMap, int[] labelMap) {
+		String[] parts = line.split("\t");
+		if (parts.length < 4 || !"SimpleDocument".equals(parts[0]))
+			return null;
+		long[] features = new long[parts.length - 3];
+		int num = 0;
+		for (int i = 3; i < parts.length; i++) {
+			int sep = parts[i].indexOf(':');
+			int index = Integer.parseInt(parts[i].substring(0, sep));
+			if (index >= termMap.length || termMap[index] == -1)
+				continue;
+			int freq = Integer.parseInt(parts[i].substring(sep + 1));
+			features[num++] = ((long) termMap[index] << 32) | freq;
+		}
+		if (num == 0)
+			return null;
+		Arrays.sort(features, 0, num);
+		StringBuilder remapped = new StringBuilder(line.length());
+		remapped.append(parts[0]).append('\t');
+		remapped.append(labelMap[Integer.parseInt(parts[1])]).append('\t');
+		remapped.append(parts[2]);
+		for (int i = 0; i < num; i++) {
+			remapped.append('\t').append((int) (features[i] >>> 32));
+			remapped.append(':').append((int) features[i]);
+		}
+		return SimpleDocument.parse(remapped.toString());
+	}
+
+	// applies the gradient of a mini-batch computed with the weights as they
+	// were at the beginning of the batch, returns the number of documents which
+	// were misclassified
+	private int update(LinearModel model, int[][] indices, double[][] values,
+			int[] labels, int size) {
+		int columns = model.getNrW();
+		int[] modelLabels = model.getLabels();
+		double rate = learningRate / (1d + learningRate * regularization
+				* updates);
+		double[][] gradients = new double[size][columns];
+		double[] decisions = new double[columns];
+		int errors = 0;
+		for (int d = 0; d < size; d++) {
+			model.decisionValues(indices[d], values[d], decisions);
+			for (int c = 0; c < columns; c++)
+				decisions[c] *= scale;
+			if (model.predict(decisions) != labels[d])
+				errors++;
+			for (int c = 0; c < columns; c++) {
+				double y = modelLabels[c] == labels[d] ? 1d : -1d;
+				// derivative of log(1 + exp(-y * z))
+				gradients[d][c] = -y / (1d + Math.exp(y * decisions[c]));
+			}
+		}
+		double step = rate / (size * scale);
+		for (int d = 0; d < size; d++) {
+			for (int c = 0; c < columns; c++) {
+				double g = gradients[d][c] * step;
+				for (int i = 0; i < indices[d].length; i++)
+					model.addWeight(indices[d][i], c, -g * values[d][i]);
+				model.addBiasWeight(c, -g * model.getBias());
+			}
+		}
+		// L2 regularization
+		scale *= 1d - rate * regularization;
+		if (scale < 1e-6) {
+			model.scale(scale);
+			scale = 1d;
+		}
+		updates++;
+		return errors;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void setEpochs(int epochs) {
+		this.epochs = epochs;
+	}
+
+	public void setLearningRate(double learningRate) {
+		this.learningRate = learningRate;
+	}
+
+	public void setRegularization(double regularization) {
+		this.regularization = regularization;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File modelDir = null;
+		File corpusDir = null;
+		File outputDir = null;
+		OnlineLearner learner = new OnlineLearner();
+		for (int i = 0; i < args.length - 1; i += 2) {
+			if ("-model".equals(args[i]))
+				modelDir = new File(args[i + 1]);
+			else if ("-corpus".equals(args[i]))
+				corpusDir = new File(args[i + 1]);
+			else if ("-output".equals(args[i]))
+				outputDir = new File(args[i + 1]);
+			else if ("-batch".equals(args[i]))
+				learner.setBatchSize(Integer.parseInt(args[i + 1]));
+			else if ("-epochs".equals(args[i]))
+				learner.setEpochs(Integer.parseInt(args[i + 1]));
+			else if ("-rate".equals(args[i]))
+				learner.setLearningRate(Double.parseDouble(args[i + 1]));
+			else if ("-lambda".equals(args[i]))
+				learner.setRegularization(Double.parseDouble(args[i + 1]));
+		}
+		if (modelDir == null || corpusDir == null) {
+			System.err
+					.println("OnlineLearner -model dir -corpus dir [-output dir] [-batch 100] [-epochs 1] [-rate 0.1] [-lambda 1e-6]");
+			System.exit(-1);
+		}
+		if (outputDir == null)
+			outputDir = modelDir;
+		File version = learner.update(modelDir, corpusDir, outputDir);
+		System.out.println("Model written in " + version);
+	}
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes the rare values of the spans of a training corpus in two passes.
+ * During the first pass the spans are written to a temporary file and the
+ * number of spans in which each value occurs is estimated with a count-min
+ * sketch of fixed size, so nothing is kept in memory per value. Once the
+ * corpus is complete the spans are read back and only the values seen in at
+ * least minDocFreq spans are returned, including their first occurrences.
+ * The estimate can only be too high : a rare value may occasionally be kept
+ * but no frequent value is dropped. The values are normalised like in the
+ * SimpleDocuments of the API before being counted and empty values are
+ * ignored.
+ **/
+final class RareValueFilter {
+
+	private final File file;
+
+	private final int minDocFreq;
+
+	private final CountMinSketch sketch = new CountMinSketch(4, 1 << 20);
+
+	// distinct values of the current span
+	private final TermCounter distinct = new TermCounter();
+
+	private DataOutputStream out;
+
+	private DataInputStream in;
+
+	private int numSpans;
+
+	// spans left to read in the second pass
+	private int remaining;
+
+	private String label;
+
+	private String[] values;
+
+	RareValueFilter(File file, int minDocFreq) throws IOException {
+		this.file = file;
+		this.minDocFreq = minDocFreq;
+		file.getParentFile().mkdirs();
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+	}
+
+	/** First pass : stores a span and counts its distinct values **/
+	void addSpan(String[] spanValues, String spanLabel) throws IOException {
+		distinct.clear();
+		for (int i = 0; i < spanValues.length; i++) {
+			if (spanValues[i] == null || spanValues[i].length() == 0)
+				continue;
+			String value = normalise(spanValues[i]);
+			if (distinct.increment(value) == 1)
+				sketch.add(value);
+		}
+		FeatureCache.writeString(out, spanLabel);
+		FeatureCache.writeVInt(out, distinct.size());
+		for (int i = 0; i < distinct.size(); i++) {
+			int slot = distinct.slotAt(i);
+			FeatureCache.writeString(out, distinct.keyAt(slot));
+			FeatureCache.writeVInt(out, distinct.countAt(slot));
+		}
+		numSpans++;
+	}
+
+	/**
+	 * Second pass : moves to the next span, returns false once all the spans
+	 * have been read, in which case the file is deleted
+	 **/
+	boolean nextSpan() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			remaining = numSpans;
+		}
+		if (remaining == 0) {
+			discard();
+			return false;
+		}
+		remaining--;
+		label = FeatureCache.readString(in);
+		int numValues = FeatureCache.readVInt(in);
+		List<String> kept = new ArrayList<String>(numValues);
+		for (int i = 0; i < numValues; i++) {
+			String value = FeatureCache.readString(in);
+			int occurrences = FeatureCache.readVInt(in);
+			if (sketch.estimate(value) < minDocFreq)
+				continue;
+			for (int o = 0; o < occurrences; o++)
+				kept.add(value);
+		}
+		values = kept.toArray(new String[kept.size()]);
+		return true;
+	}
+
+	/** Label of the current span **/
+	String label() {
+		return label;
+	}
+
+	/** Values of the current span seen in at least minDocFreq spans **/
+	String[] values() {
+		return values;
+	}
+
+	/** Closes and deletes the temporary file **/
+	void discard() {
+		try {
+			if (out != null)
+				out.close();
+			if (in != null)
+				in.close();
+		} catch (IOException e) {
+		}
+		out = null;
+		in = null;
+		file.delete();
+	}
+
+	// same normalisation as LexiconFilter without a regex for most values
+	private static String normalise(String value) {
+		for (int i = 0; i < value.length(); i++)
+			if (Character.isWhitespace(value.charAt(i)))
+				return LexiconFilter.normalise(value);
+		return value;
+	}
+}
@@ -42,6 +42,12 @@ public class SimpleClassifierPR extends AbstractLanguageAnalyser implements
 
 	private URL modelDir;
 
+	/**
+	 * Number of synthetic documents classified when the model is loaded, 0 for
+	 * no warm-up
+	 */
+	private Integer warmUpDocuments = 0;
+
 	/*
 	 * this method gets called whenever an object of this class is created
 	 * either from GATE GUI or if initiated using Factory.createResource()
@@ -62,9 +68,15 @@ public class SimpleClassifierPR extends AbstractLanguageAnalyser implements
 		}
 		// initializes the modelCreator
 		try {
-			String pathresourceDir = new File(URI.create(modelDir
-					.toExternalForm())).getAbsolutePath();
-			this.applier = TextClassifier.getClassifier(pathresourceDir);
+			File resourceDir = new File(URI.create(modelDir.toExternalForm()));
+			// use the latest version if the model has been updated
+			this.applier = TextClassifier.getClassifier(ModelVersions
+					.latest(resourceDir));
+			if (warmUpDocuments != null && warmUpDocuments.intValue() > 0) {
+				WarmUp warmUp = WarmUp.run(applier, null, warmUpDocuments
+						.intValue());
+				fireStatusChanged(warmUp.toString());
+			}
 		} catch (Exception e) {
 			throw new ResourceInstantiationException(e);
 		}
@@ -133,4 +145,12 @@ public class SimpleClassifierPR extends AbstractLanguageAnalyser implements
 	public void setModelDir(URL modelDir) {
 		this.modelDir = modelDir;
 	}
+
+	public Integer getWarmUpDocuments() {
+		return warmUpDocuments;
+	}
+
+	public void setWarmUpDocuments(Integer warmUpDocuments) {
+		this.warmUpDocuments = warmUpDocuments;
+	}
 }
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Labels and scores found by the ClassifierPR for all the spans of a document,
+ * stored in parallel arrays and attached to the document as a single feature
+ * instead of two features per span annotation. The results can be read by
+ * annotation id or copied onto the annotations when needed. The ClassifierPR
+ * seals the results before attaching them to the document, they are not
+ * modified afterwards.
+ **/
+public class SpanLabels implements Serializable {
+
+	private static final long serialVersionUID = 2L;
+
+	/** Suffix of the name of the document feature holding the results **/
+	public static final String FEATURE_SUFFIX = "_spans";
+
+	private final String[] labels;
+
+	// sorted once all the spans have been added
+	private int[] annotationIds;
+
+	private int[] labelIndices;
+
+	private double[] scores;
+
+	private int size;
+
+	private boolean sorted = true;
+
+	SpanLabels(String[] labels, int expectedSize) {
+		this.labels = labels;
+		int capacity = Math.max(expectedSize, 1);
+		annotationIds = new int[capacity];
+		labelIndices = new int[capacity];
+		scores = new double[capacity];
+	}
+
+	/**
+	 * Returns the results stored in a document by the ClassifierPR for a given
+	 * label feature, null if there are none
+	 **/
+	public static SpanLabels get(Document document, String labelFeature) {
+		Object value = document.getFeatures().get(
+				labelFeature + FEATURE_SUFFIX);
+		return value instanceof SpanLabels ? (SpanLabels) value : null;
+	}
+
+	void add(int annotationId, int labelIndex, double score) {
+		if (size == annotationIds.length) {
+			int capacity = size << 1;
+			annotationIds = copy(annotationIds, capacity);
+			labelIndices = copy(labelIndices, capacity);
+			double[] newScores = new double[capacity];
+			System.arraycopy(scores, 0, newScores, 0, size);
+			scores = newScores;
+		}
+		if (size > 0 && annotationIds[size - 1] > annotationId)
+			sorted = false;
+		annotationIds[size] = annotationId;
+		labelIndices[size] = labelIndex;
+		scores[size] = score;
+		size++;
+	}
+
+	/** Sorts the results by annotation id so that they can be looked up **/
+	void seal() {
+		if (sorted)
+			return;
+		// sorts the ids along with their positions
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++)
+			keys[i] = ((long) annotationIds[i] << 32) | i;
+		Arrays.sort(keys);
+		int[] newIds = new int[size];
+		int[] newLabels = new int[size];
+		double[] newScores = new double[size];
+		for (int i = 0; i < size; i++) {
+			int position = (int) keys[i];
+			newIds[i] = annotationIds[position];
+			newLabels[i] = labelIndices[position];
+			newScores[i] = scores[position];
+		}
+		annotationIds = newIds;
+		labelIndices = newLabels;
+		scores = newScores;
+		sorted = true;
+	}
+
+	/** Number of spans classified **/
+	public int size() {
+		return size;
+	}
+
+	/** Names of the labels of the model, indexed by label index **/
+	public String[] getLabels() {
+		return labels;
+	}
+
+	public int getAnnotationId(int position) {
+		return annotationIds[position];
+	}
+
+	public int getLabelIndex(int position) {
+		return labelIndices[position];
+	}
+
+	public String getLabel(int position) {
+		return labels[labelIndices[position]];
+	}
+
+	public double getScore(int position) {
+		return scores[position];
+	}
+
+	/** Position of the results for an annotation or -1 if it has none **/
+	public int indexOf(int annotationId) {
+		if (!sorted)
+			throw new IllegalStateException("The results must be sealed first");
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (annotationIds[mid] < annotationId)
+				low = mid + 1;
+			else if (annotationIds[mid] > annotationId)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/** Label found for an annotation or null if it was not classified **/
+	public String getLabel(Annotation annotation) {
+		int position = indexOf(annotation.getId().intValue());
+		return position == -1 ? null : getLabel(position);
+	}
+
+	/**
+	 * Writes the label and score as features of the annotation like the
+	 * ClassifierPR does in annotation mode, returns false if the annotation
+	 * was not classified
+	 **/
+	public boolean materialise(Annotation annotation, String labelFeature,
+			String scoreFeature) {
+		int position = indexOf(annotation.getId().intValue());
+		if (position == -1)
+			return false;
+		annotation.getFeatures().put(labelFeature, getLabel(position));
+		annotation.getFeatures().put(scoreFeature,
+				Double.valueOf(scores[position]));
+		return true;
+	}
+
+	/** Writes the features for all the annotations of a set **/
+	public void materialise(AnnotationSet annotations, String labelFeature,
+			String scoreFeature) {
+		Iterator<Annotation> iterator = annotations.iterator();
+		while (iterator.hasNext())
+			materialise(iterator.next(), labelFeature, scoreFeature);
+	}
+
+	private static int[] copy(int[] array, int capacity) {
+		int[] newArray = new int[capacity];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+}
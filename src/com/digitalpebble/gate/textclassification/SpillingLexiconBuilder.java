@@ -0,0 +1,522 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.digitalpebble.classification.Lexicon;
+
+/**
+ * Builds the lexicon and raw file of a training corpus within a memory budget.
+ * The terms are kept in an open addressing table until their estimated size
+ * exceeds the budget, at which point they are written to disk sorted
+ * alphabetically (a run) and the table is cleared. The documents are written
+ * to a temporary file with the position of their terms in the current run.
+ * When the corpus is complete the runs are merged to assign the final
+ * attribute IDs, which are written to disk for each run. At most
+ * {@link #FAN_IN} runs are merged at once, larger numbers of runs are first
+ * merged by groups into intermediate runs so that the number of open files
+ * is bounded. The documents are
+ * then read in the order of the runs and the IDs of a single run are loaded
+ * at a time to write the raw file in the format of the Learner. Unlike with
+ * the Learner, the IDs follow the alphabetical order of the terms. The labels
+ * and number of documents are kept in the lexicon of the Learner.
+ **/
+final class SpillingLexiconBuilder {
+
+	// rough number of bytes used by a term of the table besides its chars
+	private static final int TERM_OVERHEAD = 64;
+
+	// maximum number of runs merged at once, each needs two open files
+	static final int FAN_IN = 64;
+
+	private final Lexicon lexicon;
+
+	private final File directory;
+
+	private final long budget;
+
+	// terms of the current run indexed by their position
+	private String[] terms = new String[1024];
+
+	private int[] docFreqs = new int[1024];
+
+	// position + 1 of the terms, 0 for an empty slot
+	private int[] table = new int[2048];
+
+	private int size;
+
+	private long memory;
+
+	// number of terms of each run written to disk
+	private final List<Integer> runSizes = new ArrayList<Integer>();
+
+	private final DataOutputStream documents;
+
+	private int numDocuments;
+
+	/**
+	 * Uses a temporary directory where the runs and documents are written,
+	 * budget is the memory in bytes allowed for the terms
+	 **/
+	SpillingLexiconBuilder(Lexicon lexicon, File directory, long budget)
+			throws IOException {
+		this.lexicon = lexicon;
+		this.directory = directory;
+		this.budget = budget;
+		deleteDirectory();
+		if (!directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		documents = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(new File(directory, "documents"))));
+	}
+
+	/**
+	 * Adds a document, the values are processed like with Learner
+	 * .createDocument() i.e. empty values are ignored and whitespaces are
+	 * replaced by underscores
+	 **/
+	void addDocument(String[] values, String label) throws IOException {
+		lexicon.incrementDocCount();
+		int labelIndex = lexicon.getLabelIndex(label);
+		Map<String, int[]> counts = new HashMap<String, int[]>();
+		int total = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null || values[i].length() < 1)
+				continue;
+			total++;
+			String term = values[i].replaceAll("\\s+", "_");
+			int[] count = counts.get(term);
+			if (count == null) {
+				count = new int[1];
+				counts.put(term, count);
+			}
+			count[0]++;
+		}
+		FeatureCache.writeVInt(documents, runSizes.size());
+		FeatureCache.writeVInt(documents, labelIndex);
+		FeatureCache.writeVInt(documents, total);
+		FeatureCache.writeVInt(documents, counts.size());
+		Iterator<Map.Entry<String, int[]>> iter = counts.entrySet()
+				.iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, int[]> entry = iter.next();
+			FeatureCache.writeVInt(documents, add(entry.getKey()));
+			FeatureCache.writeVInt(documents, entry.getValue()[0]);
+		}
+		numDocuments++;
+		// a document always refers to a single run
+		if (memory > budget)
+			spill();
+	}
+
+	// position of the term in the current run, increments its doc freq
+	private int add(String term) {
+		int slot = slot(term);
+		if (table[slot] != 0) {
+			docFreqs[table[slot] - 1]++;
+			return table[slot] - 1;
+		}
+		if (size == terms.length) {
+			String[] newTerms = new String[size << 1];
+			System.arraycopy(terms, 0, newTerms, 0, size);
+			terms = newTerms;
+			int[] newFreqs = new int[size << 1];
+			System.arraycopy(docFreqs, 0, newFreqs, 0, size);
+			docFreqs = newFreqs;
+		}
+		terms[size] = term;
+		docFreqs[size] = 1;
+		table[slot] = ++size;
+		memory += TERM_OVERHEAD + 2 * term.length();
+		if (size * 2 > table.length)
+			rehash(table.length << 1);
+		return size - 1;
+	}
+
+	private int slot(String term) {
+		int mask = table.length - 1;
+		int slot = mix(term.hashCode()) & mask;
+		while (table[slot] != 0 && !terms[table[slot] - 1].equals(term))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private static int mix(int hash) {
+		hash ^= (hash >>> 16);
+		hash *= 0x85ebca6b;
+		return hash ^ (hash >>> 13);
+	}
+
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		for (int i = 0; i < size; i++)
+			table[slot(terms[i])] = i + 1;
+	}
+
+	// writes the terms of the current run sorted alphabetically
+	private void spill() throws IOException {
+		String[] sorted = new String[size];
+		System.arraycopy(terms, 0, sorted, 0, size);
+		Arrays.sort(sorted);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(run(runSizes.size()))));
+		try {
+			for (int i = 0; i < sorted.length; i++) {
+				int position = table[slot(sorted[i])] - 1;
+				FeatureCache.writeString(out, sorted[i]);
+				FeatureCache.writeVInt(out, position);
+				FeatureCache.writeVInt(out, docFreqs[position]);
+			}
+		} finally {
+			out.close();
+		}
+		runSizes.add(Integer.valueOf(size));
+		// starts a new run
+		size = 0;
+		memory = 0;
+		terms = new String[1024];
+		docFreqs = new int[1024];
+		table = new int[2048];
+	}
+
+	private File run(int number) {
+		return new File(directory, "run" + number);
+	}
+
+	/**
+	 * Merges the runs, appends the terms found in at least minDocFreq
+	 * documents to the lexicon file which must already contain the header
+	 * written by the Learner and appends the documents to the raw file. Like
+	 * with {@link Lexicon#pruneTermsDocFreq(int, int)} the rarer terms keep
+	 * their ID in the raw file. The temporary files are deleted.
+	 **/
+	void finish(File lexiconFile, File rawFile, int minDocFreq)
+			throws IOException {
+		if (size > 0 || runSizes.isEmpty())
+			spill();
+		documents.close();
+		// sizes and parents of the runs, including the intermediate ones
+		List<Integer> sizes = new ArrayList<Integer>(runSizes);
+		List<Integer> parents = new ArrayList<Integer>();
+		List<Integer> level = new ArrayList<Integer>();
+		for (int r = 0; r < runSizes.size(); r++) {
+			level.add(Integer.valueOf(r));
+			parents.add(Integer.valueOf(-1));
+		}
+		// merges the runs by groups until they can be merged at once
+		while (level.size() > FAN_IN) {
+			List<Integer> nextLevel = new ArrayList<Integer>();
+			for (int g = 0; g < level.size(); g += FAN_IN) {
+				List<Integer> group = level.subList(g, Math.min(g + FAN_IN,
+						level.size()));
+				int merged = sizes.size();
+				sizes.add(Integer.valueOf(merge(group, sizes, merged, null,
+						minDocFreq)));
+				parents.add(Integer.valueOf(-1));
+				for (int i = 0; i < group.size(); i++)
+					parents.set(group.get(i).intValue(), Integer
+							.valueOf(merged));
+				nextLevel.add(Integer.valueOf(merged));
+			}
+			level = nextLevel;
+		}
+		Writer lexiconWriter = new BufferedWriter(new FileWriter(lexiconFile,
+				true));
+		try {
+			merge(level, sizes, -1, lexiconWriter, minDocFreq);
+		} finally {
+			lexiconWriter.close();
+		}
+		// the IDs of a run are known once the run it was merged into has its
+		// own; intermediate runs have higher numbers than their inputs
+		for (int r = sizes.size() - 1; r >= 0; r--) {
+			int parent = parents.get(r).intValue();
+			if (parent != -1)
+				resolveIds(r, sizes.get(r).intValue(), parent);
+		}
+		writeDocuments(rawFile);
+		deleteDirectory();
+	}
+
+	/**
+	 * Merges a group of runs into the run number output or, if lexiconWriter
+	 * is not null, into the lexicon. The terms get consecutive positions in
+	 * the output, starting from 1 for the lexicon IDs. For each input, the
+	 * pairs of its positions and of the positions in the output are written
+	 * in the order of the output; they are its IDs if the output is the
+	 * lexicon. The files are closed as soon as an input is exhausted. Returns
+	 * the number of terms of the output.
+	 **/
+	private int merge(List<Integer> inputs, List<Integer> sizes, int output,
+			Writer lexiconWriter, int minDocFreq) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<Run>();
+		DataOutputStream[] maps = new DataOutputStream[inputs.size()];
+		DataOutputStream out = null;
+		int next = lexiconWriter != null ? 1 : 0;
+		try {
+			for (int i = 0; i < inputs.size(); i++) {
+				int number = inputs.get(i).intValue();
+				maps[i] = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(lexiconWriter != null ? ids(number)
+								: map(number))));
+				Run run = new Run(i, run(number), sizes.get(number)
+						.intValue());
+				if (run.next())
+					queue.add(run);
+				else
+					exhausted(run, maps);
+			}
+			if (lexiconWriter == null)
+				out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(run(output))));
+			while (!queue.isEmpty()) {
+				Run run = queue.poll();
+				String term = run.term;
+				int position = next++;
+				int docFreq = 0;
+				while (true) {
+					FeatureCache.writeVInt(maps[run.number], run.position);
+					FeatureCache.writeVInt(maps[run.number], position);
+					docFreq += run.docFreq;
+					if (run.next())
+						queue.add(run);
+					else
+						exhausted(run, maps);
+					if (queue.isEmpty() || !queue.peek().term.equals(term))
+						break;
+					run = queue.poll();
+				}
+				if (out != null) {
+					FeatureCache.writeString(out, term);
+					FeatureCache.writeVInt(out, position);
+					FeatureCache.writeVInt(out, docFreq);
+				} else if (docFreq >= minDocFreq)
+					lexiconWriter.write(term + "\t" + position + "\t"
+							+ docFreq + "\n");
+			}
+		} finally {
+			if (out != null)
+				out.close();
+			for (int i = 0; i < maps.length; i++)
+				if (maps[i] != null)
+					maps[i].close();
+			Iterator<Run> iter = queue.iterator();
+			while (iter.hasNext())
+				iter.next().close();
+		}
+		return lexiconWriter != null ? next - 1 : next;
+	}
+
+	private static void exhausted(Run run, DataOutputStream[] maps)
+			throws IOException {
+		run.close();
+		maps[run.number].close();
+		maps[run.number] = null;
+	}
+
+	/**
+	 * Writes the IDs of a run merged into an intermediate run whose IDs are
+	 * known. The map of the run is in the order of the positions in the
+	 * parent and the IDs of the parent are in the order of its positions, so
+	 * both files are read once.
+	 **/
+	private void resolveIds(int number, int runSize, int parent)
+			throws IOException {
+		DataInputStream map = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(map(number))));
+		DataInputStream parentIds = null;
+		DataOutputStream out = null;
+		try {
+			parentIds = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(ids(parent))));
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(ids(number))));
+			int parentPosition = -1;
+			int id = 0;
+			for (int i = 0; i < runSize; i++) {
+				int position = FeatureCache.readVInt(map);
+				int target = FeatureCache.readVInt(map);
+				while (parentPosition != target) {
+					parentPosition = FeatureCache.readVInt(parentIds);
+					id = FeatureCache.readVInt(parentIds);
+				}
+				FeatureCache.writeVInt(out, position);
+				FeatureCache.writeVInt(out, id);
+			}
+		} finally {
+			map.close();
+			if (parentIds != null)
+				parentIds.close();
+			if (out != null)
+				out.close();
+		}
+	}
+
+	private File ids(int number) {
+		return new File(directory, "ids" + number);
+	}
+
+	private File map(int number) {
+		return new File(directory, "map" + number);
+	}
+
+	// IDs of the terms of a run indexed by their position
+	private int[] loadIds(int number) throws IOException {
+		int[] ids = new int[runSizes.get(number).intValue()];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(ids(number))));
+		try {
+			for (int i = 0; i < ids.length; i++) {
+				int position = FeatureCache.readVInt(in);
+				ids[position] = FeatureCache.readVInt(in);
+			}
+		} finally {
+			in.close();
+		}
+		return ids;
+	}
+
+	/**
+	 * Writes the documents with the same serialisation as the SimpleDocuments
+	 * of the Learner. The documents were added in the order of the runs so
+	 * only the IDs of the current run are kept in memory.
+	 **/
+	private void writeDocuments(File rawFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(new File(directory, "documents"))));
+		Writer out = new BufferedWriter(new FileWriter(rawFile, true));
+		try {
+			StringBuilder line = new StringBuilder();
+			int currentRun = -1;
+			int[] runIds = null;
+			for (int d = 0; d < numDocuments; d++) {
+				int run = FeatureCache.readVInt(in);
+				if (run != currentRun) {
+					runIds = loadIds(run);
+					currentRun = run;
+				}
+				int label = FeatureCache.readVInt(in);
+				int total = FeatureCache.readVInt(in);
+				// sorts the attributes by ID along with their frequency
+				long[] attributes = new long[FeatureCache.readVInt(in)];
+				for (int i = 0; i < attributes.length; i++) {
+					int id = runIds[FeatureCache.readVInt(in)];
+					attributes[i] = ((long) id << 32)
+							| FeatureCache.readVInt(in);
+				}
+				Arrays.sort(attributes);
+				line.setLength(0);
+				line.append("SimpleDocument\t").append(label).append('\t')
+						.append((double) total);
+				for (int i = 0; i < attributes.length; i++)
+					line.append('\t').append((int) (attributes[i] >>> 32))
+							.append(':').append((int) attributes[i]);
+				line.append('\n');
+				out.write(line.toString());
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/** Abandons the documents added so far **/
+	void discard() {
+		try {
+			documents.close();
+		} catch (IOException e) {
+		}
+		deleteDirectory();
+	}
+
+	private void deleteDirectory() {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (int i = 0; i < files.length; i++)
+				files[i].delete();
+		directory.delete();
+	}
+
+	/** Number of runs written to disk so far **/
+	int getNumRuns() {
+		return runSizes.size();
+	}
+
+	// sorted terms of a run being merged
+	private static final class Run implements Comparable<Run> {
+
+		// index of the run in the group being merged
+		final int number;
+
+		private final DataInputStream in;
+
+		private int remaining;
+
+		String term;
+
+		int position;
+
+		int docFreq;
+
+		Run(int number, File file, int size) throws IOException {
+			this.number = number;
+			this.remaining = size;
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+		}
+
+		boolean next() throws IOException {
+			if (remaining-- == 0)
+				return false;
+			term = FeatureCache.readString(in);
+			position = FeatureCache.readVInt(in);
+			docFreq = FeatureCache.readVInt(in);
+			return true;
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+
+		public int compareTo(Run other) {
+			int comparison = term.compareTo(other.term);
+			if (comparison != 0)
+				return comparison;
+			return number - other.number;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+/**
+ * Open addressing map from String to int used to count terms without boxing
+ * the counts or creating an entry object per term. The slots in use are
+ * remembered so that iterating over the terms with {@link #slotAt(int)},
+ * {@link #keyAt(int)} and {@link #countAt(int)} or clearing the map only costs
+ * the number of terms it holds.
+ **/
+final class TermCounter {
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private String[] keys;
+
+	private int[] counts;
+
+	// slots holding a term, in the order they were filled
+	private int[] used;
+
+	private int size;
+
+	TermCounter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	TermCounter(int expected) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity < expected * 2)
+			capacity <<= 1;
+		keys = new String[capacity];
+		counts = new int[capacity];
+		used = new int[capacity / 2 + 1];
+	}
+
+	/** Adds one to the count of the term and returns the new count **/
+	int increment(String term) {
+		return add(term, 1);
+	}
+
+	/** Adds delta to the count of the term and returns the new count **/
+	int add(String term, int delta) {
+		int slot = slot(term);
+		if (keys[slot] == null) {
+			keys[slot] = term;
+			used[size++] = slot;
+			counts[slot] = delta;
+			if (size * 2 > keys.length) {
+				rehash(keys.length << 1);
+			}
+			return delta;
+		}
+		counts[slot] += delta;
+		return counts[slot];
+	}
+
+	/** Returns the count for a term or 0 if it has not been seen **/
+	int get(String term) {
+		int slot = slot(term);
+		if (keys[slot] == null)
+			return 0;
+		return counts[slot];
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			keys[used[i]] = null;
+			counts[used[i]] = 0;
+		}
+		size = 0;
+	}
+
+	/** Slot of the index-th term added, index being lower than size() **/
+	int slotAt(int index) {
+		return used[index];
+	}
+
+	/** Term stored in the slot **/
+	String keyAt(int slot) {
+		return keys[slot];
+	}
+
+	int countAt(int slot) {
+		return counts[slot];
+	}
+
+	/** Returns the slot holding the term or the empty slot where it would go **/
+	private int slot(String term) {
+		int mask = keys.length - 1;
+		int slot = mix(term.hashCode()) & mask;
+		while (keys[slot] != null && !keys[slot].equals(term)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		String[] oldKeys = keys;
+		int[] oldCounts = counts;
+		int[] oldUsed = used;
+		keys = new String[capacity];
+		counts = new int[capacity];
+		used = new int[capacity / 2 + 1];
+		int mask = capacity - 1;
+		for (int i = 0; i < size; i++) {
+			int old = oldUsed[i];
+			int slot = mix(oldKeys[old].hashCode()) & mask;
+			while (keys[slot] != null)
+				slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[old];
+			counts[slot] = oldCounts[old];
+			used[i] = slot;
+		}
+	}
+
+	// spreads the bits of String.hashCode() which are poor in the low bits
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the time spent processing the documents in the Trace Event format
+ * used by Chrome (chrome://tracing) and other profilers. Each event covers a
+ * period of time on a thread, e.g. a document or a span, and has arguments
+ * such as the number of values processed. The PRs writing to the same file
+ * share the same recorder so that their events appear on the same timeline.
+ * The events are buffered and flushed by the PRs at the end of each document,
+ * whether it succeeded or not; the format allows the file to be left without
+ * its closing bracket if the process stops.
+ **/
+final class TraceRecorder {
+
+	// recorders in use, by path of their file
+	private static final Map<String, TraceRecorder> recorders = new HashMap<String, TraceRecorder>();
+
+	private final String path;
+
+	private final Writer out;
+
+	// number of PRs using the recorder
+	private int users;
+
+	private boolean empty = true;
+
+	private final long origin = System.nanoTime();
+
+	private TraceRecorder(String path) throws IOException {
+		this.path = path;
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+				path), "UTF-8"));
+		out.write("[\n");
+	}
+
+	/**
+	 * Returns the recorder for a file: URL, the one currently used by a PR is
+	 * released if it writes to another file. Returns null if the URL is null.
+	 **/
+	static TraceRecorder update(TraceRecorder current, URL url)
+			throws IOException {
+		if (url == null) {
+			release(current);
+			return null;
+		}
+		if (!"file".equals(url.getProtocol()))
+			throw new IOException("tracePath must be a file: URL");
+		String path = new File(URI.create(url.toExternalForm()))
+				.getCanonicalPath();
+		if (current != null && current.path.equals(path))
+			return current;
+		release(current);
+		synchronized (recorders) {
+			TraceRecorder recorder = recorders.get(path);
+			if (recorder == null) {
+				recorder = new TraceRecorder(path);
+				recorders.put(path, recorder);
+			}
+			recorder.users++;
+			return recorder;
+		}
+	}
+
+	/** Closes the file once it is no longer used by any PR **/
+	static void release(TraceRecorder recorder) {
+		if (recorder == null)
+			return;
+		synchronized (recorders) {
+			if (--recorder.users > 0)
+				return;
+			recorders.remove(recorder.path);
+		}
+		recorder.close();
+	}
+
+	/**
+	 * Whether the n-th document (starting from 0) is traced so that a ratio
+	 * rate of the documents are, spread evenly
+	 **/
+	static boolean sample(long n, Double rate) {
+		if (rate == null || rate.doubleValue() >= 1d)
+			return true;
+		double r = rate.doubleValue();
+		return Math.floor((n + 1) * r) > Math.floor(n * r);
+	}
+
+	/** Current time in microseconds on the timeline of the trace **/
+	long now() {
+		return (System.nanoTime() - origin) / 1000l;
+	}
+
+	/**
+	 * Records a period of time starting at start (as returned by now()) and
+	 * ending now, the arguments are given as name, value pairs
+	 **/
+	void complete(String name, String category, long start, Object... args) {
+		long duration = now() - start;
+		StringBuilder event = new StringBuilder(128);
+		event.append("{\"name\":");
+		Json.quote(name, event);
+		event.append(",\"cat\":");
+		Json.quote(category, event);
+		event.append(",\"ph\":\"X\",\"ts\":").append(start).append(
+				",\"dur\":").append(duration).append(",\"pid\":1,\"tid\":")
+				.append(Thread.currentThread().getId());
+		if (args.length > 0) {
+			event.append(",\"args\":{");
+			for (int i = 0; i + 1 < args.length; i += 2) {
+				if (i > 0)
+					event.append(',');
+				Json.quote(String.valueOf(args[i]), event);
+				event.append(':');
+				if (args[i + 1] instanceof Number)
+					event.append(args[i + 1]);
+				else
+					Json.quote(String.valueOf(args[i + 1]), event);
+			}
+			event.append('}');
+		}
+		event.append('}');
+		synchronized (this) {
+			try {
+				if (!empty)
+					out.write(",\n");
+				out.write(event.toString());
+				empty = false;
+			} catch (IOException e) {
+				// tracing must not stop the processing
+			}
+		}
+	}
+
+	/** Writes the buffered events to the file **/
+	synchronized void flush() {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			// tracing must not stop the processing
+		}
+	}
+
+	private synchronized void close() {
+		try {
+			out.write("\n]\n");
+			out.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -17,19 +17,16 @@ package com.digitalpebble.gate.textclassification;
 
 import gate.Annotation;
 import gate.AnnotationSet;
-import gate.FeatureMap;
 import gate.ProcessingResource;
 import gate.Resource;
 import gate.creole.AbstractLanguageAnalyser;
 import gate.creole.ExecutionException;
 import gate.creole.ResourceInstantiationException;
-import gate.util.OffsetComparator;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -71,6 +68,26 @@ public class TrainingCorpusCreatorPR extends AbstractLanguageAnalyser
 	private String weightingScheme;
 	private Boolean reinitCorpus = true;
 	private String implementation = Learner.LibSVMModelCreator;
+	/**
+	 * Directory where the values extracted from the documents are cached, no
+	 * caching if null
+	 */
+	private URL featureCacheDir;
+	/**
+	 * Memory in MB allowed for the terms of the lexicon while the corpus is
+	 * created, -1 for no limit. When set, the terms are spilled to disk and the
+	 * lexicon and raw file are written once the last document is processed.
+	 */
+	private Integer lexiconMemory = -1;
+	private SpillingLexiconBuilder spillingBuilder;
+	/**
+	 * Minimum number of spans in which a value must have been seen to be used
+	 * as an attribute, -1 to keep all the values. When set, the spans are
+	 * added to the corpus in a second pass once the last document has been
+	 * processed, without their rare values.
+	 */
+	private Integer minTermFrequency = -1;
+	private RareValueFilter rareValueFilter;
 
 	/*
 	 * this method gets called whenever an object of this class is created
@@ -96,6 +113,14 @@ public class TrainingCorpusCreatorPR extends AbstractLanguageAnalyser
 				.getAbsolutePath();
 		
 		try {
+			if (spillingBuilder != null) {
+				spillingBuilder.discard();
+				spillingBuilder = null;
+			}
+			if (rareValueFilter != null) {
+				rareValueFilter.discard();
+				rareValueFilter = null;
+			}
 			this.creator = Learner.getLearner(pathDirectory, implementation,
 					reinitCorpus);
 			this.trainingcorpus = creator.getFileTrainingCorpus();
@@ -140,52 +165,25 @@ public class TrainingCorpusCreatorPR extends AbstractLanguageAnalyser
 			System.err.println("There are no annotations of type "
 					+ labelAnnotationType + " available in document!");
 		}
-		Iterator<Annotation> iterator = textAS.iterator();
-		while (iterator.hasNext()) {
-			Annotation annotation = iterator.next();
-			// find out the feature of type textAnnotationValue
-			// e.g a sentence
-			FeatureMap features = annotation.getFeatures();
-			String textAV = (String) features.get(labelAnnotationValue);
-			if (textAV == null) {
-				continue;
-			}
-			// obtain the components annotations
-			AnnotationSet set = inputAS.getContained(annotation.getStartNode()
-					.getOffset(), annotation.getEndNode().getOffset());
-			if (set.isEmpty())
-				continue;
-			AnnotationSet underlyingAS = set.get(attributeAnnotationType);
-			if (underlyingAS.isEmpty())
-				continue;
-
-			List<Annotation> list = new ArrayList<Annotation>();
-			Iterator<Annotation> iter = underlyingAS.iterator();
-			while (iter.hasNext()) {
-				Annotation annot = iter.next();
-				if (annot.getFeatures().containsKey(attributeAnnotationValue)) {
-					list.add(annot);
-				}
-			}
-			// make underlyingAS eligible for garbage collection
-			underlyingAS = null;
-			// sort them
-			Collections.sort(list, new OffsetComparator());
-			String[] values = new String[list.size()];
-			// else obtain the value of each feature (componentAnnotationValue)
-			for (int i = 0; i < list.size(); i++) {
-				Annotation annot = (Annotation) list.get(i);
-				values[i] = (String) annot.getFeatures().get(
-						attributeAnnotationValue);
-			}
-			if (values.length == 0)
-				continue;
-			// creates a simple document
-			Document newDocument = creator.createDocument(values, textAV);
-			try {
-				this.trainingcorpus.addDocument(newDocument);
-			} catch (IOException e) {
-				throw new ExecutionException(e);
+		SpillingLexiconBuilder spilling = getSpillingBuilder();
+		FeatureCache cache = FeatureCache.forURL(featureCacheDir);
+		if (cache != null) {
+			List<FeatureCache.Span> spans = cachedSpans(cache, inputAS, textAS);
+			for (int s = 0; s < spans.size(); s++)
+				addSpan(spans.get(s), spilling);
+		} else {
+			// without cache the values of each span are extracted just
+			// before it is added to the corpus and are not kept
+			Iterator<Annotation> iterator = textAS.iterator();
+			while (iterator.hasNext()) {
+				Annotation annotation = iterator.next();
+				if (annotation.getFeatures().get(labelAnnotationValue) == null)
+					continue;
+				FeatureCache.Span span = FeatureCache.extract(inputAS,
+						annotation, attributeAnnotationType,
+						attributeAnnotationValue, labelAnnotationValue);
+				if (span != null)
+					addSpan(span, spilling);
 			}
 		}
 		// check if this document is the last of this corpus in which case
@@ -198,8 +196,29 @@ public class TrainingCorpusCreatorPR extends AbstractLanguageAnalyser
 				WeightingMethod method = Parameters.WeightingMethod
 						.methodFromString(getWeightingScheme());
 				this.creator.setMethod(method);
+				if (rareValueFilter != null) {
+					// second pass : the frequencies of the values are known
+					RareValueFilter filter = rareValueFilter;
+					rareValueFilter = null;
+					while (filter.nextSpan())
+						addToCorpus(filter.values(), filter.label(), spilling);
+				}
 				trainingcorpus.close();
+				// the few values kept because their frequency was
+				// overestimated are removed with the exact frequencies
+				int minDocFreq = minTermFrequency == null ? -1
+						: minTermFrequency.intValue();
+				if (spilling == null && minDocFreq > 1)
+					creator.pruneTermsDocFreq(minDocFreq, Integer.MAX_VALUE);
 				creator.saveLexicon();
+				if (spilling != null) {
+					File corpusDir = new File(URI.create(directory
+							.toExternalForm()));
+					spillingBuilder = null;
+					spilling.finish(new File(corpusDir,
+							Parameters.lexiconName), new File(corpusDir,
+							Parameters.rawName), minDocFreq);
+				}
 			} catch (Exception e) {
 				throw new ExecutionException(e);
 			} finally {
@@ -208,6 +227,116 @@ public class TrainingCorpusCreatorPR extends AbstractLanguageAnalyser
 		}
 	}
 
+	/** Adds the values of a span to the corpus if it has a label **/
+	private void addSpan(FeatureCache.Span span,
+			SpillingLexiconBuilder spilling) throws ExecutionException {
+		// the value of the label feature e.g. the lang of a sentence
+		String textAV = span.label;
+		String[] values = span.values;
+		if (textAV == null || values.length == 0)
+			return;
+		try {
+			RareValueFilter filter = getRareValueFilter();
+			// first pass : the span is only counted
+			if (filter != null)
+				filter.addSpan(values, textAV);
+			else
+				addToCorpus(values, textAV, spilling);
+		} catch (IOException e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	/** Adds a document to the training corpus or to the spilling builder **/
+	private void addToCorpus(String[] values, String label,
+			SpillingLexiconBuilder spilling) throws IOException {
+		if (values.length == 0)
+			return;
+		if (spilling != null) {
+			spilling.addDocument(values, label);
+			return;
+		}
+		// creates a simple document
+		Document newDocument = creator.createDocument(values, label);
+		this.trainingcorpus.addDocument(newDocument);
+	}
+
+	/**
+	 * Returns the filter used when rare values are removed, creates it for the
+	 * first span
+	 */
+	private RareValueFilter getRareValueFilter() throws IOException {
+		if (minTermFrequency == null || minTermFrequency.intValue() <= 1)
+			return null;
+		if (rareValueFilter == null) {
+			File corpusDir = new File(URI.create(directory.toExternalForm()));
+			rareValueFilter = new RareValueFilter(new File(corpusDir,
+					"spans.tmp"), minTermFrequency.intValue());
+		}
+		return rareValueFilter;
+	}
+
+	/**
+	 * Returns the builder used when the memory of the lexicon is limited,
+	 * creates it for the first document
+	 */
+	private SpillingLexiconBuilder getSpillingBuilder()
+			throws ExecutionException {
+		if (lexiconMemory == null || lexiconMemory.intValue() <= 0)
+			return null;
+		if (spillingBuilder != null)
+			return spillingBuilder;
+		// the IDs of the terms are only known at the end
+		if (creator.getLexicon().getAttributesNum() > 0)
+			throw new ExecutionException(
+					"lexiconMemory can only be used on an empty corpus");
+		File corpusDir = new File(URI.create(directory.toExternalForm()));
+		try {
+			spillingBuilder = new SpillingLexiconBuilder(creator.getLexicon(),
+					new File(corpusDir, "spill"),
+					lexiconMemory.longValue() * 1024l * 1024l);
+		} catch (IOException e) {
+			throw new ExecutionException(e);
+		}
+		return spillingBuilder;
+	}
+
+	/**
+	 * Returns the label and values of the attributes for each span annotation,
+	 * from the feature cache if it has them for this document and the labels
+	 * have not changed, otherwise they are extracted and stored in the cache.
+	 * The spans without label are kept in the cache so that it can be used by
+	 * the ClassifierPR.
+	 */
+	private List<FeatureCache.Span> cachedSpans(FeatureCache cache,
+			AnnotationSet inputAS, AnnotationSet textAS)
+			throws ExecutionException {
+		String config = FeatureCache.config(inputAnnotationSet,
+				labelAnnotationType, textAS.size(), labelAnnotationValue,
+				attributeAnnotationType, attributeAnnotationValue);
+		List<FeatureCache.Span> spans = cache.load(document, config, true);
+		if (spans != null
+				&& FeatureCache.isValid(spans, inputAS, textAS,
+						labelAnnotationValue, attributeAnnotationType,
+						attributeAnnotationValue))
+			return spans;
+		spans = new ArrayList<FeatureCache.Span>();
+		Iterator<Annotation> iterator = textAS.iterator();
+		while (iterator.hasNext()) {
+			FeatureCache.Span span = FeatureCache.extract(inputAS, iterator
+					.next(), attributeAnnotationType,
+					attributeAnnotationValue, labelAnnotationValue);
+			if (span != null)
+				spans.add(span);
+		}
+		try {
+			cache.store(document, config, true, spans);
+		} catch (IOException e) {
+			throw new ExecutionException(e);
+		}
+		return spans;
+	}
+
 	/**
 	 * Checks if values for the manadatory parameters provided.
 	 * 
@@ -304,4 +433,28 @@ public class TrainingCorpusCreatorPR extends AbstractLanguageAnalyser
 		this.implementation = implementation;
 	}
 
+	public URL getFeatureCacheDir() {
+		return featureCacheDir;
+	}
+
+	public void setFeatureCacheDir(URL featureCacheDir) {
+		this.featureCacheDir = featureCacheDir;
+	}
+
+	public Integer getMinTermFrequency() {
+		return minTermFrequency;
+	}
+
+	public void setMinTermFrequency(Integer minTermFrequency) {
+		this.minTermFrequency = minTermFrequency;
+	}
+
+	public Integer getLexiconMemory() {
+		return lexiconMemory;
+	}
+
+	public void setLexiconMemory(Integer lexiconMemory) {
+		this.lexiconMemory = lexiconMemory;
+	}
+
 }
\ No newline at end of file
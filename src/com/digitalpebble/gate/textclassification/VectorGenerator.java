@@ -0,0 +1,339 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.digitalpebble.classification.Document;
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.MultiFieldDocument;
+import com.digitalpebble.classification.Parameters;
+import com.digitalpebble.classification.SimpleDocument;
+import com.digitalpebble.classification.Vector;
+import com.digitalpebble.classification.Parameters.WeightingMethod;
+
+/**
+ * Generates the vector file of a training corpus on several threads. The raw
+ * file is split into as many parts as there are threads, at line boundaries,
+ * and each part is weighted against the same lexicon and written to its own
+ * shard. The lexicon is only read while the shards are generated. The lines
+ * are identical to those written by the TextClassification API when it
+ * trains a model and the shards follow the order of the raw file, so that
+ * their concatenation is the vector file the API would have written.
+ **/
+public class VectorGenerator {
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private final Lexicon lexicon;
+
+	/** Number of documents written to each shard by the last call **/
+	private int[] documents = new int[0];
+
+	public VectorGenerator(Lexicon lexicon) {
+		this.lexicon = lexicon;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int[] getDocuments() {
+		return documents;
+	}
+
+	/**
+	 * Weights the documents of the raw file and writes them to the shards
+	 * prefix.0, prefix.1... which are returned in the order of the raw file
+	 **/
+	public List<File> generate(File raw, File prefix) throws IOException {
+		long[] bounds = split(raw, Math.max(1, threads));
+		List<File> shards = new ArrayList<File>();
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < bounds.length - 1; i++) {
+			File shard = new File(prefix.getPath() + "." + i);
+			shards.add(shard);
+			tasks.add(new ShardTask(raw, bounds[i], bounds[i + 1], shard,
+					lexicon));
+		}
+		List<Integer> counts = new ArrayList<Integer>();
+		if (tasks.size() > 1) {
+			ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+			try {
+				List<Future<Integer>> results = pool.invokeAll(tasks);
+				for (int i = 0; i < results.size(); i++)
+					counts.add(results.get(i).get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Vector generation interrupted");
+			} catch (ExecutionException e) {
+				throw asIOException(e.getCause());
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			try {
+				counts.add(tasks.get(0).call());
+			} catch (Exception e) {
+				throw asIOException(e);
+			}
+		}
+		documents = new int[counts.size()];
+		for (int i = 0; i < documents.length; i++)
+			documents[i] = counts.get(i).intValue();
+		return shards;
+	}
+
+	/** Concatenates the shards into a single file and deletes them **/
+	public static void merge(List<File> shards, File output)
+			throws IOException {
+		FileOutputStream out = new FileOutputStream(output);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			for (int i = 0; i < shards.size(); i++) {
+				InputStream in = new FileInputStream(shards.get(i));
+				try {
+					int read;
+					while ((read = in.read(buffer)) != -1)
+						out.write(buffer, 0, read);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+		for (int i = 0; i < shards.size(); i++)
+			shards.get(i).delete();
+	}
+
+	/**
+	 * Returns the offsets at which the parts start, followed by the length of
+	 * the file. Each part starts at the beginning of a line; a part can be
+	 * empty if the lines are longer than the parts.
+	 **/
+	static long[] split(File raw, int parts) throws IOException {
+		long length = raw.length();
+		long[] bounds = new long[parts + 1];
+		bounds[parts] = length;
+		RandomAccessFile file = new RandomAccessFile(raw, "r");
+		try {
+			for (int i = 1; i < parts; i++) {
+				long position = Math.max(length * i / parts, bounds[i - 1]);
+				if (position == 0 || position >= length) {
+					bounds[i] = Math.min(position, length);
+					continue;
+				}
+				// the part starts after the first end of line found from the
+				// previous character
+				file.seek(position - 1);
+				int b;
+				while ((b = file.read()) != -1 && b != '\n')
+					;
+				bounds[i] = file.getFilePointer();
+			}
+		} finally {
+			file.close();
+		}
+		return bounds;
+	}
+
+	/** Same line as the TextClassification API writes in a vector file **/
+	static void appendExample(StringBuilder line, int label, Vector vector) {
+		line.append(label).append(' ');
+		int[] indices = vector.getIndices();
+		double[] values = vector.getValues();
+		for (int i = 0; i < indices.length; i++)
+			line.append(' ').append(indices[i]).append(':').append(values[i]);
+		line.append('\n');
+	}
+
+	/** Weights the documents of a part of the raw file into a shard **/
+	private static class ShardTask implements Callable<Integer> {
+
+		private final File raw;
+
+		private final long start;
+
+		private final long end;
+
+		private final File shard;
+
+		private final Lexicon lexicon;
+
+		ShardTask(File raw, long start, long end, File shard, Lexicon lexicon) {
+			this.raw = raw;
+			this.start = start;
+			this.end = end;
+			this.shard = shard;
+			this.lexicon = lexicon;
+		}
+
+		public Integer call() throws IOException {
+			FileInputStream in = new FileInputStream(raw);
+			Writer out = null;
+			int count = 0;
+			try {
+				in.getChannel().position(start);
+				// same charset as the FileReader of the FileTrainingCorpus
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(new BoundedInputStream(in, end
+								- start)));
+				out = new BufferedWriter(new FileWriter(shard));
+				StringBuilder line = new StringBuilder();
+				String record;
+				while ((record = reader.readLine()) != null) {
+					Document doc;
+					if (record.startsWith("SimpleDocument"))
+						doc = SimpleDocument.parse(record);
+					else if (record.startsWith("MultiFieldDocument"))
+						doc = MultiFieldDocument.parse(record);
+					else
+						continue;
+					line.setLength(0);
+					appendExample(line, doc.getLabel(), doc
+							.getFeatureVector(lexicon));
+					out.write(line.toString());
+					count++;
+				}
+			} finally {
+				in.close();
+				if (out != null)
+					out.close();
+			}
+			return Integer.valueOf(count);
+		}
+	}
+
+	/** Stops reading after a given number of bytes **/
+	private static class BoundedInputStream extends FilterInputStream {
+
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = super.read();
+			if (b != -1)
+				remaining--;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int read = super.read(b, off, (int) Math.min(len, remaining));
+			if (read > 0)
+				remaining -= read;
+			return read;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	private static IOException asIOException(Throwable t) {
+		if (t instanceof IOException)
+			return (IOException) t;
+		IOException e = new IOException("Vector generation failed : " + t);
+		e.initCause(t);
+		return e;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File corpusDir = null;
+		File outputDir = null;
+		WeightingMethod method = null;
+		boolean merge = false;
+		int threads = -1;
+		for (int i = 0; i < args.length - 1; i += 2) {
+			if ("-corpus".equals(args[i]))
+				corpusDir = new File(args[i + 1]);
+			else if ("-output".equals(args[i]))
+				outputDir = new File(args[i + 1]);
+			else if ("-weighting".equals(args[i]))
+				method = WeightingMethod.methodFromString(args[i + 1]);
+			else if ("-threads".equals(args[i]))
+				threads = Integer.parseInt(args[i + 1]);
+			else if ("-merge".equals(args[i]))
+				merge = Boolean.valueOf(args[i + 1]).booleanValue();
+		}
+		if (corpusDir == null) {
+			System.err
+					.println("VectorGenerator -corpus dir [-output dir] [-weighting tfidf] [-threads n] [-merge true]");
+			System.exit(-1);
+		}
+		if (outputDir == null)
+			outputDir = corpusDir;
+		outputDir.mkdirs();
+		Lexicon lexicon = new Lexicon(new File(corpusDir,
+				Parameters.lexiconName).getPath());
+		if (method != null)
+			lexicon.setMethod(method);
+		VectorGenerator generator = new VectorGenerator(lexicon);
+		if (threads > 0)
+			generator.setThreads(threads);
+		long start = System.currentTimeMillis();
+		File vectors = new File(outputDir, Parameters.vectorName);
+		List<File> shards = generator.generate(new File(corpusDir,
+				Parameters.rawName), vectors);
+		int total = 0;
+		for (int i = 0; i < generator.getDocuments().length; i++)
+			total += generator.getDocuments()[i];
+		System.out.println(total + " documents weighted with "
+				+ lexicon.getMethod() + " into " + shards.size()
+				+ " shards in " + (System.currentTimeMillis() - start)
+				+ " msec");
+		if (merge) {
+			merge(shards, vectors);
+			System.out.println("Vectors written to " + vectors);
+		}
+	}
+}
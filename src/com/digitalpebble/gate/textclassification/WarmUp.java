@@ -0,0 +1,193 @@
+/**
+ * Copyright 2010 DigitalPebble Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.digitalpebble.gate.textclassification;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.digitalpebble.classification.Document;
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.TextClassifier;
+
+/**
+ * Classifies synthetic documents made of the terms of the lexicon right after
+ * a model has been loaded so that the classification code is compiled by the
+ * JIT and the memory of the lexicon and model is touched before the first
+ * real documents arrive. The throughput is measured over batches of documents
+ * and the warm-up stops once it is stable and all the terms have been used,
+ * or when the maximum number of documents has been classified. The synthetic
+ * documents are also used to check that a {@link LinearScorer} predicts the
+ * same labels as its classifier.
+ **/
+final class WarmUp {
+
+	// number of terms in a synthetic document
+	private static final int DOCUMENT_LENGTH = 32;
+
+	// number of documents between two measures of the throughput
+	private static final int BATCH_SIZE = 64;
+
+	// maximum relative difference between the throughputs of two batches
+	private static final double TOLERANCE = 0.1d;
+
+	// number of consecutive batches with a similar throughput
+	private static final int STABLE_BATCHES = 3;
+
+	private int documents;
+
+	private long nanos;
+
+	// documents per second over the last batches
+	private double throughput;
+
+	// number of documents classified when the throughput became stable, -1
+	// if it did not
+	private int steadyAfter = -1;
+
+	private WarmUp() {
+	}
+
+	/**
+	 * Classifies at most maxDocuments synthetic documents with the scorer if
+	 * it is not null, with the classifier otherwise
+	 **/
+	static WarmUp run(TextClassifier classifier, LinearScorer scorer,
+			int maxDocuments) throws Exception {
+		WarmUp warmUp = new WarmUp();
+		List<String> terms = terms(classifier, new Random(0));
+		if (terms.isEmpty() || maxDocuments <= 0)
+			return warmUp;
+		int position = 0;
+		int stable = 0;
+		double previous = -1d;
+		String[] tokens = new String[Math.min(DOCUMENT_LENGTH, terms.size())];
+		while (warmUp.documents < maxDocuments) {
+			int batch = Math.min(BATCH_SIZE, maxDocuments - warmUp.documents);
+			long start = System.nanoTime();
+			for (int d = 0; d < batch; d++) {
+				for (int t = 0; t < tokens.length; t++)
+					tokens[t] = terms.get(position++ % terms.size());
+				// same calls as the classifier PRs
+				Document doc = classifier.createDocument(tokens);
+				classifier.getBestLabel(scorer != null ? scorer.classify(doc)
+						: classifier.classify(doc));
+			}
+			long time = Math.max(System.nanoTime() - start, 1l);
+			warmUp.nanos += time;
+			warmUp.documents += batch;
+			if (batch < BATCH_SIZE)
+				break;
+			double rate = batch * 1000000000d / time;
+			if (previous > 0
+					&& Math.abs(rate - previous) <= TOLERANCE
+							* Math.max(rate, previous))
+				stable++;
+			else
+				stable = 0;
+			previous = rate;
+			warmUp.throughput = rate;
+			if (stable + 1 >= STABLE_BATCHES && warmUp.steadyAfter == -1)
+				warmUp.steadyAfter = warmUp.documents;
+			// stable and every term has been looked up at least once
+			if (warmUp.steadyAfter != -1 && position >= terms.size())
+				break;
+		}
+		return warmUp;
+	}
+
+	/**
+	 * Classifies numDocuments synthetic documents with the classifier and the
+	 * scorer and returns the number of them for which the labels differ. The
+	 * documents have a random number of terms of the lexicon, some of them
+	 * repeated, and some unknown terms.
+	 **/
+	static int compare(TextClassifier classifier, LinearScorer scorer,
+			int numDocuments) throws Exception {
+		Random random = new Random(1);
+		List<String> terms = terms(classifier, random);
+		int differences = 0;
+		List<String> tokens = new ArrayList<String>();
+		for (int d = 0; d < numDocuments; d++) {
+			tokens.clear();
+			int length = 1 + random.nextInt(2 * DOCUMENT_LENGTH);
+			for (int t = 0; t < length; t++) {
+				if (terms.isEmpty() || random.nextInt(10) == 0)
+					tokens.add("unknown" + random.nextInt(100));
+				else
+					tokens.add(terms.get(random.nextInt(terms.size())));
+			}
+			Document doc = classifier.createDocument(tokens
+					.toArray(new String[tokens.size()]));
+			String expected = classifier.getBestLabel(classifier.classify(doc));
+			String actual = classifier.getBestLabel(scorer.classify(doc));
+			if (!expected.equals(actual))
+				differences++;
+		}
+		return differences;
+	}
+
+	// the terms of the lexicon in a random but reproducible order
+	private static List<String> terms(TextClassifier classifier, Random random)
+			throws Exception {
+		List<String> terms = new ArrayList<String>(lexicon(classifier)
+				.getInvertedIndex().values());
+		Collections.shuffle(terms, random);
+		return terms;
+	}
+
+	// the lexicon used by the classifier is not exposed by the API
+	static Lexicon lexicon(TextClassifier classifier)
+			throws NoSuchFieldException, IllegalAccessException {
+		Field field = TextClassifier.class.getDeclaredField("lexicon");
+		field.setAccessible(true);
+		return (Lexicon) field.get(classifier);
+	}
+
+	/** Number of documents classified **/
+	int getDocuments() {
+		return documents;
+	}
+
+	long getMillis() {
+		return nanos / 1000000l;
+	}
+
+	/** Documents per second measured on the last batch **/
+	double getThroughput() {
+		return throughput;
+	}
+
+	boolean isSteady() {
+		return steadyAfter != -1;
+	}
+
+	public String toString() {
+		StringBuilder report = new StringBuilder("Warm-up : ");
+		report.append(documents).append(" documents in ").append(getMillis())
+				.append(" msec, ");
+		if (isSteady())
+			report.append("steady throughput of ").append(
+					Math.round(throughput)).append(" docs/sec after ").append(
+					steadyAfter).append(" documents");
+		else
+			report.append("throughput not stable yet (last ").append(
+					Math.round(throughput)).append(" docs/sec)");
+		return report.toString();
+	}
+}